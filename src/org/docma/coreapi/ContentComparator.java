@@ -0,0 +1,185 @@
+/*
+ * ContentComparator.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Compares content streams. The comparison strategy depends on the type
+ * of the streams:
+ * <ul>
+ * <li>File streams: the remaining lengths are compared first. Then the
+ *     files are read through their channels into direct buffers, which are
+ *     compared in bulk.</li>
+ * <li>Other streams: blocks are read into heap buffers, which are compared
+ *     in bulk.</li>
+ * </ul>
+ * Bulk comparison uses <code>ByteBuffer.equals()</code>, which is
+ * vectorized by newer Java runtimes. The buffers are kept in small pools,
+ * which are shared by all threads. If a pool is empty, new buffers are
+ * allocated; if a pool is full, returned buffers are discarded.
+ *
+ * @author MP
+ */
+class ContentComparator
+{
+    private static final int BLOCK_SIZE = 256*1024;
+    private static final int MAX_POOLED = 4;   // buffer pairs per pool
+
+    private static final BlockingQueue<ByteBuffer[]> directBuffers = 
+        new ArrayBlockingQueue<ByteBuffer[]>(MAX_POOLED);
+    private static final BlockingQueue<byte[][]> heapBuffers = 
+        new ArrayBlockingQueue<byte[][]>(MAX_POOLED);
+
+    private ContentComparator()
+    {
+    }
+
+    /**
+     * Returns true if the content of both nodes is equal. If both nodes
+     * have content, then the content lengths are compared, before the
+     * content streams are read. Note that the content in the current
+     * translation mode of the session is compared.
+     */
+    static boolean contentEquals(DocContent cont1, DocContent cont2) throws IOException
+    {
+        if (cont1.getContentLength() != cont2.getContentLength()) {
+            return false;
+        }
+        InputStream in1 = cont1.getContentStream();
+        try {
+            InputStream in2 = cont2.getContentStream();
+            try {
+                return streamsAreEqual(in1, in2);
+            } finally {
+                if (in2 != null) in2.close();
+            }
+        } finally {
+            if (in1 != null) in1.close();
+        }
+    }
+
+    /**
+     * Returns true if both streams provide the same bytes. The streams are
+     * not closed. Null values are treated as missing content.
+     */
+    static boolean streamsAreEqual(InputStream stream1, InputStream stream2) throws IOException
+    {
+        // Handle missing content (null values)
+        if ((stream1 == null) || (stream2 == null)) {
+            return ((stream1 == null) && (stream2 == null));
+        }
+        if ((stream1 instanceof FileInputStream) && (stream2 instanceof FileInputStream)) {
+            return channelsAreEqual(((FileInputStream) stream1).getChannel(),
+                                    ((FileInputStream) stream2).getChannel());
+        }
+        byte[][] bufs = heapBuffers.poll();
+        if (bufs == null) {
+            bufs = new byte[][] { new byte[BLOCK_SIZE], new byte[BLOCK_SIZE] };
+        }
+        try {
+            byte[] buf1 = bufs[0];
+            byte[] buf2 = bufs[1];
+            while (true) {
+                int cnt1 = readBlock(stream1, buf1);
+                int cnt2 = readBlock(stream2, buf2);
+                if (cnt1 != cnt2) {
+                    return false;  // streams have different length
+                }
+                if (cnt1 == 0) {
+                    return true;   // both streams have reached the end
+                }
+                if (! ByteBuffer.wrap(buf1, 0, cnt1).equals(ByteBuffer.wrap(buf2, 0, cnt2))) {
+                    return false;
+                }
+            }
+        } finally {
+            heapBuffers.offer(bufs);
+        }
+    }
+
+    /* --------------  Private methods  ---------------------- */
+
+    private static boolean channelsAreEqual(FileChannel ch1, FileChannel ch2) throws IOException
+    {
+        long pos1 = ch1.position();
+        long pos2 = ch2.position();
+        if ((ch1.size() - pos1) != (ch2.size() - pos2)) {
+            return false;
+        }
+        ByteBuffer[] bufs = directBuffers.poll();
+        if (bufs == null) {
+            bufs = new ByteBuffer[] { ByteBuffer.allocateDirect(BLOCK_SIZE),
+                                      ByteBuffer.allocateDirect(BLOCK_SIZE) };
+        }
+        try {
+            ByteBuffer buf1 = bufs[0];
+            ByteBuffer buf2 = bufs[1];
+            while (true) {
+                buf1.clear();
+                buf2.clear();
+                int cnt1 = readBlock(ch1, buf1);
+                int cnt2 = readBlock(ch2, buf2);
+                if (cnt1 != cnt2) {
+                    return false;  // file has been modified concurrently
+                }
+                if (cnt1 == 0) {
+                    return true;
+                }
+                buf1.flip();
+                buf2.flip();
+                if (! buf1.equals(buf2)) {
+                    return false;
+                }
+            }
+        } finally {
+            directBuffers.offer(bufs);
+        }
+    }
+
+    /**
+     * Fills the buffer. Returns the number of bytes read. Less than
+     * buf.length bytes are only returned at the end of the stream.
+     */
+    private static int readBlock(InputStream in, byte[] buf) throws IOException
+    {
+        int total = 0;
+        while (total < buf.length) {
+            int cnt = in.read(buf, total, buf.length - total);
+            if (cnt < 0) {
+                break;
+            }
+            total += cnt;
+        }
+        return total;
+    }
+
+    private static int readBlock(FileChannel ch, ByteBuffer buf) throws IOException
+    {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int cnt = ch.read(buf);
+            if (cnt < 0) {
+                break;
+            }
+            total += cnt;
+        }
+        return total;
+    }
+}
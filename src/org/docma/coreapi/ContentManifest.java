@@ -0,0 +1,196 @@
+/*
+ * ContentManifest.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Digests of the content that has been copied to a target version.
+ * The manifest is created while the content is streamed from the source
+ * to the target store. The verification of the copied version then only
+ * needs to read the target content.
+ *
+ * @author MP
+ */
+class ContentManifest
+{
+    static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    ContentManifest()
+    {
+    }
+
+    void put(String nodeId, String lang, long length, byte[] digest)
+    {
+        entries.put(getKey(nodeId, lang), new Entry(length, digest));
+    }
+
+    /**
+     * Records that content has been copied without calculating the digest,
+     * e.g. because the target store did not read the stream to the end.
+     * The verification then has to compare the content byte by byte.
+     */
+    void putUndigested(String nodeId, String lang)
+    {
+        entries.put(getKey(nodeId, lang), new Entry(-1, null));
+    }
+
+    Entry get(String nodeId, String lang)
+    {
+        return entries.get(getKey(nodeId, lang));
+    }
+
+    int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Reads the given stream to the end and returns the digest.
+     * The stream is not closed.
+     */
+    static DigestStream digestStream(InputStream in) throws IOException
+    {
+        DigestStream ds = new DigestStream(in);
+        byte[] buf = new byte[64*1024];
+        while (ds.read(buf) >= 0) {
+            // read until end of stream
+        }
+        return ds;
+    }
+
+    static MessageDigest createDigest()
+    {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new DocRuntimeException(ex);
+        }
+    }
+
+    private static String getKey(String nodeId, String lang)
+    {
+        return (lang == null) ? nodeId : (nodeId + "[" + lang + "]");
+    }
+
+    /* --------------  Inner classes  ---------------------- */
+
+    static class Entry
+    {
+        final long length;
+        final byte[] digest;
+
+        Entry(long length, byte[] digest)
+        {
+            this.length = length;
+            this.digest = digest;
+        }
+
+        boolean hasDigest()
+        {
+            return (digest != null);
+        }
+
+        boolean matches(long len, byte[] dig)
+        {
+            return (length == len) && MessageDigest.isEqual(digest, dig);
+        }
+    }
+
+    /**
+     * Input stream that calculates the digest and the length of all bytes
+     * that are read from the underlying stream.
+     */
+    static class DigestStream extends FilterInputStream
+    {
+        private final MessageDigest md = createDigest();
+        private long count = 0;
+        private boolean endReached = false;
+        private byte[] digest = null;
+
+        DigestStream(InputStream in)
+        {
+            super(in);
+        }
+
+        public int read() throws IOException
+        {
+            int b = in.read();
+            if (b < 0) {
+                endReached = true;
+            } else {
+                md.update((byte) b);
+                count++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int cnt = in.read(b, off, len);
+            if (cnt < 0) {
+                endReached = true;
+            } else {
+                md.update(b, off, cnt);
+                count += cnt;
+            }
+            return cnt;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            // Skipped bytes have to be included in the digest.
+            byte[] buf = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int cnt = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+                if (cnt < 0) break;
+                skipped += cnt;
+            }
+            return skipped;
+        }
+
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        /**
+         * Returns true if the underlying stream has been read to the end.
+         */
+        boolean isEndReached()
+        {
+            return endReached;
+        }
+
+        long getCount()
+        {
+            return count;
+        }
+
+        byte[] getDigest()
+        {
+            if (digest == null) {
+                digest = md.digest();
+            }
+            return digest;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * CopyStoreOptions.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi;
+
+/**
+ * Optional settings for <code>DocStoreUtilities.copyDocStore()</code>.
+ * The default settings result in a sequential copy operation.
+ *
+ * @author MP
+ */
+public class CopyStoreOptions
+{
+    private int maxThreads = 1;
+    private DocStoreManager sourceManager = null;
+    private DocStoreManager targetManager = null;
+    private boolean incremental = false;
+    private boolean verifyContentDigest = false;
+    private boolean verifyContentFallback = true;
+
+    public CopyStoreOptions()
+    {
+    }
+
+    /**
+     * Returns the maximum number of versions that are copied concurrently.
+     *
+     * @return  the maximum number of worker threads
+     */
+    public int getMaxThreads()
+    {
+        return maxThreads;
+    }
+
+    /**
+     * Sets the maximum number of versions that are copied concurrently.
+     * A value greater than 1 requires that the source and target managers
+     * are set, because each worker thread needs its own sessions.
+     *
+     * @param maxThreads  the maximum number of worker threads
+     */
+    public void setMaxThreads(int maxThreads)
+    {
+        this.maxThreads = Math.max(1, maxThreads);
+    }
+
+    public DocStoreManager getSourceManager()
+    {
+        return sourceManager;
+    }
+
+    /**
+     * Sets the manager that is used to open additional source sessions
+     * for the worker threads.
+     *
+     * @param sourceManager  the manager of the source store
+     */
+    public void setSourceManager(DocStoreManager sourceManager)
+    {
+        this.sourceManager = sourceManager;
+    }
+
+    public DocStoreManager getTargetManager()
+    {
+        return targetManager;
+    }
+
+    /**
+     * Sets the manager that is used to open additional target sessions
+     * for the worker threads.
+     *
+     * @param targetManager  the manager of the target store
+     */
+    public void setTargetManager(DocStoreManager targetManager)
+    {
+        this.targetManager = targetManager;
+    }
+
+    public boolean isIncremental()
+    {
+        return incremental;
+    }
+
+    /**
+     * If set to true, the versions that already exist in the target store 
+     * are synchronized with the source versions instead of being deleted 
+     * and copied again. Only nodes that differ are written to the target 
+     * store. Note that the content of unchanged nodes is still read: 
+     * the store API provides neither modification stamps nor stored 
+     * digests. If the content lengths differ, the content is written 
+     * without reading the target content. Otherwise source and target 
+     * content are compared byte by byte. Thus, incremental synchronization 
+     * saves write operations, but not read operations. 
+     * Target versions that do not exist in the source store (or that 
+     * are not included in the list of versions to be copied) are deleted. 
+     * If the version tree of the target store does not match the version 
+     * tree of the source store, all target versions are copied again.
+     *
+     * @param incremental  true to enable incremental synchronization
+     */
+    public void setIncremental(boolean incremental)
+    {
+        this.incremental = incremental;
+    }
+
+    public boolean isVerifyContentDigest()
+    {
+        return verifyContentDigest;
+    }
+
+    /**
+     * If set to true, a digest of each copied content is calculated while
+     * the content is streamed to the target store. The verification of the
+     * copied version then compares the digest of the target content with 
+     * the recorded digest, i.e. the source content is not read again.
+     * This setting has only an effect if the copy operation is verified.
+     *
+     * @param verifyContentDigest  true to verify content by digest
+     */
+    public void setVerifyContentDigest(boolean verifyContentDigest)
+    {
+        this.verifyContentDigest = verifyContentDigest;
+    }
+
+    public boolean isVerifyContentFallback()
+    {
+        return verifyContentFallback;
+    }
+
+    /**
+     * If set to true (default), then the source and target content are
+     * compared byte by byte in case the digests do not match. 
+     * Otherwise a digest mismatch is reported as verification error.
+     *
+     * @param verifyContentFallback  true to compare content on mismatch
+     */
+    public void setVerifyContentFallback(boolean verifyContentFallback)
+    {
+        this.verifyContentFallback = verifyContentFallback;
+    }
+
+    /**
+     * Returns true if versions can be copied concurrently with these settings.
+     *
+     * @return  true if parallel copy is enabled
+     */
+    public boolean isParallel()
+    {
+        return (maxThreads > 1) && (sourceManager != null) && (targetManager != null);
+    }
+}
@@ -114,6 +114,9 @@ public interface DocStoreSession {
     void commitTransaction() throws DocException;
     void rollbackTransaction();
     boolean runningTransaction();
+    void startReadOnlyTransaction() throws DocException;
+    void endReadOnlyTransaction();
+    boolean runningReadOnlyTransaction();
 
     void addDocListener(DocListener listener);
     boolean removeDocListener(DocListener listener);
@@ -16,6 +16,7 @@ package org.docma.coreapi;
 
 import java.util.*;
 import java.io.*;
+import org.docma.coreapi.implementation.AbstractDocStoreSession;
 import org.docma.util.DocmaUtil;
 
 import org.docma.util.Log;
@@ -60,6 +61,28 @@ public class DocStoreUtilities
                                     boolean verify)
                                     throws DocException
     {
+        copyDocStore(sourceSession, sourceStoreId, targetSession, targetStoreId, 
+                     versionIds, trans, transAsOrig, origAsTrans, skipStoreProps, 
+                     progress, verify, null);
+    }
+
+    public static void copyDocStore(DocStoreSession sourceSession,
+                                    String sourceStoreId,
+                                    DocStoreSession targetSession,
+                                    String targetStoreId,
+                                    DocVersionId[] versionIds,  // null means all versions.
+                                    String[] trans,             // null means all translations.
+                                    String transAsOrig,         // Convert translation to original language.
+                                    String origAsTrans,         // Convert original language to translation.
+                                    Set<String> skipStoreProps, // Do not overwrite properties of existing store.
+                                    ProgressCallback progress, 
+                                    boolean verify, 
+                                    CopyStoreOptions options)   // null means default options.
+                                    throws DocException
+    {
+        if (options == null) {
+            options = new CopyStoreOptions();
+        }
         progress.startWork();
         try {
             progress.setMessage("text.copy_store_started");
@@ -80,10 +103,24 @@ public class DocStoreUtilities
             
             // If store with Id targetStoreId does not exist, then create new store.
             // Otherwise overwrite existing target store.
+            boolean incremental = false;
             if (Arrays.asList(targetSession.listDocStores()).contains(targetStoreId)) {
                 // Store with Id targetStoreId exists.
-                // Delete all existing versions in target store:
-                targetSession.deleteAllVersions(targetStoreId, progress);
+                incremental = options.isIncremental() && 
+                              canSyncIncrementally(sourceSession, sourceStoreId, 
+                                                   targetSession, targetStoreId, skipVers);
+                if (incremental) {
+                    // Keep existing versions that are synchronized later on.
+                    // Delete versions that do not exist in the source store.
+                    deleteObsoleteVersions(targetSession, targetStoreId, allVers, skipVers);
+                } else {
+                    if (options.isIncremental()) {
+                        Log.info("Version tree of store " + targetStoreId + 
+                                 " differs from source store. Copying all versions.");
+                    }
+                    // Delete all existing versions in target store:
+                    targetSession.deleteAllVersions(targetStoreId, progress);
+                }
 
                 // Copy store properties of the source store; remove properties in 
                 // the target store that do not exist in the source store. 
@@ -106,16 +143,31 @@ public class DocStoreUtilities
                 }
                 targetSession.createDocStore(targetStoreId, pnames, pvalues);
             } 
+            if (targetSession instanceof AbstractDocStoreSession) {
+                // Image rendition definitions are stored as store properties
+                ((AbstractDocStoreSession) targetSession).docStorePropertiesChanged(targetStoreId);
+            }
 
             checkCanceledByUser(progress);
             progress.setPercent(1);  // indicate that initialization is finished
             
             // Recursively copy source versions, starting with root version(s):
             DocVersionId[] rootVerIds = getRootVersions(sourceSession, sourceStoreId);
-            copyVersionsRecursive(sourceSession, sourceStoreId,
-                                  targetSession, targetStoreId,
-                                  rootVerIds, skipVers,
-                                  trans, transAsOrig, origAsTrans, progress, verify);
+            if (options.isParallel()) {
+                // Copy sibling versions concurrently, using separate sessions per worker thread.
+                ParallelVersionCopier copier = 
+                    new ParallelVersionCopier(options, sourceSession.getUserId(), 
+                                              sourceStoreId, targetStoreId, skipVers,
+                                              trans, transAsOrig, origAsTrans, 
+                                              progress, verify, incremental);
+                copier.copyVersions(sourceSession, rootVerIds);
+            } else {
+                copyVersionsRecursive(sourceSession, sourceStoreId,
+                                      targetSession, targetStoreId,
+                                      rootVerIds, skipVers,
+                                      trans, transAsOrig, origAsTrans, 
+                                      progress, verify, incremental, options);
+            }
             progress.setMessage("text.copy_store_versions_finished_success");
         } catch (DocException ex) {
             progress.logError("text.copy_store_finished_error", ex.getLocalizedMessage());
@@ -468,7 +520,7 @@ public class DocStoreUtilities
     /* ----------  Private methods for copying a complete store ------------ */
 
 
-    private static void checkCanceledByUser(ProgressCallback progress) throws DocException
+    static void checkCanceledByUser(ProgressCallback progress) throws DocException
     {
         if (progress == null) {  // null may be provided on deeper levels of the recursive copy operation 
             return;
@@ -478,6 +530,74 @@ public class DocStoreUtilities
         }
     }
 
+    /**
+     * Returns true if the existing versions of the target store can be 
+     * synchronized incrementally, i.e. if each version that exists in the
+     * source and in the target store is derived from the same base version.
+     * The base version of a copied version is the nearest ancestor version
+     * that is not skipped.
+     */
+    private static boolean canSyncIncrementally(DocStoreSession sourceSession,
+                                                String sourceStoreId,
+                                                DocStoreSession targetSession,
+                                                String targetStoreId,
+                                                Set<DocVersionId> skipVerIds)
+    {
+        Set<DocVersionId> targetVers = new TreeSet<DocVersionId>();
+        targetVers.addAll(Arrays.asList(targetSession.listVersions(targetStoreId)));
+        for (DocVersionId vid : sourceSession.listVersions(sourceStoreId)) {
+            if (skipVerIds.contains(vid) || !targetVers.contains(vid)) {
+                continue;
+            }
+            DocVersionId base = sourceSession.getVersionDerivedFrom(sourceStoreId, vid);
+            while ((base != null) && skipVerIds.contains(base)) {
+                base = sourceSession.getVersionDerivedFrom(sourceStoreId, base);
+            }
+            DocVersionId tar_base = targetSession.getVersionDerivedFrom(targetStoreId, vid);
+            if ((base == null) ? (tar_base != null) : !base.equals(tar_base)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes all versions in the target store that are not copied from the
+     * source store. Derived versions are deleted before their base version.
+     */
+    private static void deleteObsoleteVersions(DocStoreSession targetSession,
+                                               String targetStoreId,
+                                               DocVersionId[] sourceVers,
+                                               Set<DocVersionId> skipVerIds)
+                                               throws DocException
+    {
+        Set<DocVersionId> keep = new TreeSet<DocVersionId>(Arrays.asList(sourceVers));
+        keep.removeAll(skipVerIds);
+        final Map<DocVersionId, Integer> depths = new TreeMap<DocVersionId, Integer>();
+        for (DocVersionId vid : targetSession.listVersions(targetStoreId)) {
+            if (! keep.contains(vid)) {
+                int depth = 0;
+                DocVersionId base = targetSession.getVersionDerivedFrom(targetStoreId, vid);
+                while ((base != null) && (depth < MAX_COPY_DEPTH)) {
+                    ++depth;
+                    base = targetSession.getVersionDerivedFrom(targetStoreId, base);
+                }
+                depths.put(vid, depth);
+            }
+        }
+        List<DocVersionId> obsolete = new ArrayList<DocVersionId>(depths.keySet());
+        Collections.sort(obsolete, new Comparator<DocVersionId>() {
+            public int compare(DocVersionId v1, DocVersionId v2) {
+                return depths.get(v2).compareTo(depths.get(v1));  // deepest first
+            }
+        });
+        for (DocVersionId vid : obsolete) {
+            Log.info("Deleting version " + vid + " in store " + targetStoreId + 
+                     ": version does not exist in source store.");
+            targetSession.deleteVersion(targetStoreId, vid);
+        }
+    }
+
     private static void copyVersionsRecursive(DocStoreSession sourceSession,
                                               String sourceStoreId,
                                               DocStoreSession targetSession,
@@ -488,66 +608,119 @@ public class DocStoreUtilities
                                               String transAsOrig, 
                                               String origAsTrans, 
                                               ProgressCallback progress, 
-                                              boolean verify)
+                                              boolean verify, 
+                                              boolean incremental, 
+                                              CopyStoreOptions options)
                                               throws DocException
     {
         // Copy versions
         for (DocVersionId vid : verIds) {
             checkCanceledByUser(progress);
             if (! skipVerIds.contains(vid)) {
-                progress.setMessage("text.copy_store_version", vid.toString());
-                CopyVersionStatistics stats = null;
-                final int MAX_LOOPS = 3;
-                boolean copy_failed = false;
-                int loop = 0;
-                do {
-                    ++loop;
-                    if (copy_failed) {
-                        // Delete content of failed copy operation before retrying.
-                        if (progress != null) { 
-                            progress.setMessage("text.progress_delete_version", vid.toString());
-                        }
-                        // If version in target store is still open, close it before deleting it 
-                        if (targetSession.getStoreId() != null) {
-                            targetSession.closeDocStore();
-                        }
-                        targetSession.deleteVersion(targetStoreId, vid);
-                    }
-                    try {
-                        stats = copyVersion(sourceSession, sourceStoreId, 
-                                            targetSession, targetStoreId, 
-                                            vid, trans, transAsOrig, origAsTrans, progress);
-                        copy_failed = false;  // copy was successful
-                    } catch (Exception ex) {
-                        copy_failed = true;
-                        if ((loop >= MAX_LOOPS) || ((progress != null) && progress.getCancelFlag())) {
-                            // Rethrow exception
-                            if (ex instanceof DocException) throw (DocException) ex;
-                            else throw new DocException(ex);
-                        } else {
-                            ex.printStackTrace();
-                            // Supress exception and retry copy operation in next loop
-                            progress.logInfo("error.exception", ex.getMessage());
-                        }
-                    }
-                } while (copy_failed && (loop < MAX_LOOPS));
-                progress.stepFinished();
-                checkCanceledByUser(progress);
-                
-                if (verify) {
-                    boolean extended = (transAsOrig == null);
-                    verifyVersion(sourceSession, sourceStoreId, 
-                                  targetSession, targetStoreId, 
-                                  vid, stats, extended, progress);
-                    progress.stepFinished();
-                    checkCanceledByUser(progress);
-                }
+                copyVersionWithRetry(sourceSession, sourceStoreId, 
+                                     targetSession, targetStoreId, 
+                                     vid, trans, transAsOrig, origAsTrans, 
+                                     progress, verify, incremental, options);
             }
             DocVersionId[] subvers = sourceSession.getSubVersions(sourceStoreId, vid);
             copyVersionsRecursive(sourceSession, sourceStoreId, 
                                   targetSession, targetStoreId,
                                   subvers, skipVerIds, 
-                                  trans, transAsOrig, origAsTrans, progress, verify);
+                                  trans, transAsOrig, origAsTrans, 
+                                  progress, verify, incremental, options);
+        }
+    }
+
+    /**
+     * Copies a single version and optionally verifies the copy. If incremental
+     * is true and the version already exists in the target store, then the
+     * existing target version is synchronized with the source version. If copying 
+     * fails, the operation is retried (up to MAX_LOOPS times). Before retrying,
+     * a partially copied version is deleted, if the version has been created
+     * by this operation. An existing target version is never deleted; instead,
+     * the synchronization is repeated. Finishes one step of the supplied 
+     * progress callback for the copy and one step for the verification. 
+     * Called by the sequential and the parallel copy operation.
+     */
+    static void copyVersionWithRetry(DocStoreSession sourceSession,
+                                     String sourceStoreId,
+                                     DocStoreSession targetSession,
+                                     String targetStoreId,
+                                     DocVersionId vid, 
+                                     String[] trans, 
+                                     String transAsOrig, 
+                                     String origAsTrans, 
+                                     ProgressCallback progress, 
+                                     boolean verify, 
+                                     boolean incremental, 
+                                     CopyStoreOptions options)
+                                     throws DocException
+    {
+        progress.setMessage("text.copy_store_version", vid.toString());
+        boolean create_manifest = verify && options.isVerifyContentDigest();
+        // Versions that already exist in the target store belong to the user
+        // and must not be deleted if the synchronization fails.
+        boolean target_existed = incremental && 
+            Arrays.asList(targetSession.listVersions(targetStoreId)).contains(vid);
+        CopyVersionStatistics stats = null;
+        final int MAX_LOOPS = 3;
+        boolean copy_failed = false;
+        int loop = 0;
+        do {
+            ++loop;
+            if (copy_failed) {
+                // Reset session state of the failed copy operation
+                if (targetSession.runningTransaction()) {
+                    targetSession.rollbackTransaction();
+                }
+                if (targetSession.getStoreId() != null) {
+                    targetSession.closeDocStore();
+                }
+                if (sourceSession.getStoreId() != null) {
+                    sourceSession.closeDocStore();
+                }
+                // Delete content of failed copy operation before retrying,
+                // if the version has been created by this copy operation.
+                // An existing version is synchronized again instead. 
+                if (! target_existed) {
+                    if (progress != null) { 
+                        progress.setMessage("text.progress_delete_version", vid.toString());
+                    }
+                    if (Arrays.asList(targetSession.listVersions(targetStoreId)).contains(vid)) {
+                        targetSession.deleteVersion(targetStoreId, vid);
+                    }
+                }
+            }
+            try {
+                stats = copyVersion(sourceSession, sourceStoreId, 
+                                    targetSession, targetStoreId, 
+                                    vid, trans, transAsOrig, origAsTrans, progress, 
+                                    incremental, create_manifest);
+                copy_failed = false;  // copy was successful
+            } catch (Exception ex) {
+                copy_failed = true;
+                if ((loop >= MAX_LOOPS) || ((progress != null) && progress.getCancelFlag())) {
+                    // Rethrow exception
+                    if (ex instanceof DocException) throw (DocException) ex;
+                    else throw new DocException(ex);
+                } else {
+                    ex.printStackTrace();
+                    // Supress exception and retry copy operation in next loop
+                    progress.logInfo("error.exception", ex.getMessage());
+                }
+            }
+        } while (copy_failed && (loop < MAX_LOOPS));
+        progress.stepFinished();
+        checkCanceledByUser(progress);
+
+        if (verify) {
+            stats.compareContentOnMismatch = options.isVerifyContentFallback();
+            boolean extended = (transAsOrig == null);
+            verifyVersion(sourceSession, sourceStoreId, 
+                          targetSession, targetStoreId, 
+                          vid, stats, extended, progress);
+            progress.stepFinished();
+            checkCanceledByUser(progress);
         }
     }
 
@@ -560,10 +733,15 @@ public class DocStoreUtilities
                                                      String[] trans, 
                                                      String transAsOrig, 
                                                      String origAsTrans, 
-                                                     ProgressCallback progress)
+                                                     ProgressCallback progress, 
+                                                     boolean incremental, 
+                                                     boolean createManifest)
     throws DocException
     {
         CopyVersionStatistics stats = new CopyVersionStatistics();
+        if (createManifest) {
+            stats.contentManifest = new ContentManifest();
+        }
         if (targetSession.getTranslationMode() != null) {
             targetSession.leaveTranslationMode();
             Log.warning("copyVersion(): Unexpected translation mode in target session. Leaving translation mode.");
@@ -580,11 +758,17 @@ public class DocStoreUtilities
 
         // Determine base version in target store (if versions have been skipped)
         List targetVers = Arrays.asList(targetSession.listVersions(targetStoreId));
-        while ((baseVerId != null) && !targetVers.contains(baseVerId)) {
-            baseVerId = sourceSession.getVersionDerivedFrom(sourceStoreId, baseVerId);
+        boolean sync_existing = incremental && targetVers.contains(verId);
+        if (! sync_existing) {
+            while ((baseVerId != null) && !targetVers.contains(baseVerId)) {
+                baseVerId = sourceSession.getVersionDerivedFrom(sourceStoreId, baseVerId);
+            }
+            targetSession.createVersion(targetStoreId, baseVerId, verId);
+        }
+        Date target_date = sync_existing ? targetSession.getVersionCreationDate(targetStoreId, verId) : null;
+        if ((create_date == null) ? (target_date != null) : !create_date.equals(target_date)) {
+            targetSession.setVersionCreationDate(targetStoreId, verId, create_date);
         }
-        targetSession.createVersion(targetStoreId, baseVerId, verId);
-        targetSession.setVersionCreationDate(targetStoreId, verId, create_date);
 
         //
         // Copy version properties
@@ -646,7 +830,8 @@ public class DocStoreUtilities
         int cnt = syncNodeRecursive(source_root, sourceSession, 
                                     target_root, targetSession, 
                                     trans_set, transAsOrig, origAsTrans, 
-                                    targetSession.isDbStore(targetStoreId), progress);
+                                    targetSession.isDbStore(targetStoreId), 
+                                    stats.contentManifest, progress);
         stats.copiedNodes = cnt;
         
         if (targetSession.runningTransaction()) {
@@ -673,6 +858,14 @@ public class DocStoreUtilities
                    targetSession.addImageRendition(irend);
                 }
             }
+            if (sync_existing) {
+                // Remove renditions that no longer exist in the source version
+                for (DocImageRendition tar_rend : targetSession.getImageRenditions()) {
+                    if (sourceSession.getImageRendition(tar_rend.getName()) == null) {
+                        targetSession.deleteImageRendition(tar_rend.getName());
+                    }
+                }
+            }
             targetSession.commitTransaction();
         } catch (DocException ex) {
             targetSession.rollbackTransaction();
@@ -701,7 +894,8 @@ public class DocStoreUtilities
         targetSession.closeDocStore();
 
         progress.logInfo("text.copy_store_node_count", cnt);
-        String msg_prefix = "Synchronization of version " + verId + " from " +
+        String msg_prefix = (sync_existing ? "Incremental synchronization" : "Synchronization") + 
+                            " of version " + verId + " from " +
                             sourceStoreId + " to " + targetStoreId + ": ";
         Log.info(msg_prefix + cnt + " nodes updated!");
         
@@ -761,6 +955,7 @@ public class DocStoreUtilities
                                          String transAsOrig,
                                          String origAsTrans, 
                                          boolean isDbTarget,
+                                         ContentManifest manifest,
                                          ProgressCallback progress) 
     throws DocException
     {
@@ -775,7 +970,7 @@ public class DocStoreUtilities
             }
 
             // Synchronize node content
-            syncNodeShallow(sourceNode, sourceSession, targetNode, targetSession, trans, transAsOrig, origAsTrans, isDbTarget);
+            syncNodeShallow(sourceNode, sourceSession, targetNode, targetSession, trans, transAsOrig, origAsTrans, isDbTarget, manifest);
 
             // If the node is a group node, then synchronize the child nodes
             if (targetNode instanceof DocGroup) {
@@ -860,7 +1055,7 @@ public class DocStoreUtilities
                         node_count += syncNodeRecursive(srcChild, sourceSession, 
                                                         tarChild, targetSession, 
                                                         trans, transAsOrig, origAsTrans, 
-                                                        isDbTarget,
+                                                        isDbTarget, manifest,
                                                         null);  // show progress only for 1st tree-level
                         if (is_root_level) { // show progress for 1st tree-level
                             progress.stepFinished();
@@ -944,7 +1139,8 @@ public class DocStoreUtilities
                                         Set<String> trans,
                                         String transAsOrig,
                                         String origAsTrans, 
-                                        boolean isDbTarget) throws DocException
+                                        boolean isDbTarget, 
+                                        ContentManifest manifest) throws DocException
     {
         boolean srcTransactStarted = false;
         try {
@@ -959,12 +1155,12 @@ public class DocStoreUtilities
             // Synchronize original language in target store.
             // Note: If transAsOrig is not null, then the translation transAsOrig in the
             // source store is converted to the original language in the target store.
-            syncNodeShallowLang(sourceNode, sourceSession, targetNode, targetSession, transAsOrig, null, isDbTarget);
+            syncNodeShallowLang(sourceNode, sourceSession, targetNode, targetSession, transAsOrig, null, isDbTarget, manifest);
 
             if (origAsTrans != null) {
                 // Convert the original language in the source store to the translation 
                 // language origAsTrans in the target store.
-                syncNodeShallowLang(sourceNode, sourceSession, targetNode, targetSession, null, origAsTrans, isDbTarget);
+                syncNodeShallowLang(sourceNode, sourceSession, targetNode, targetSession, null, origAsTrans, isDbTarget, manifest);
             }
 
             // Synchronize translations
@@ -983,7 +1179,8 @@ public class DocStoreUtilities
                     } else {
                         // Synchronize the translation lang_code in the target store.
                         syncNodeShallowLang(sourceNode, sourceSession, 
-                                            targetNode, targetSession, lang_code, lang_code, isDbTarget);
+                                            targetNode, targetSession, lang_code, lang_code, 
+                                            isDbTarget, manifest);
                     }
                 }
             }
@@ -1007,7 +1204,8 @@ public class DocStoreUtilities
                                             DocStoreSession targetSession, 
                                             String sourceLang, 
                                             String targetLang, 
-                                            boolean isDbTarget) throws DocException
+                                            boolean isDbTarget, 
+                                            ContentManifest manifest) throws DocException
     {
         if (DocConstants.DEBUG) {
             System.out.println("SyncNodeShallowLang (" + sourceLang + "/" + targetLang + ")");
@@ -1108,12 +1306,24 @@ public class DocStoreUtilities
                 boolean content_equals = true;
                 InputStream src_stream = null; 
                 InputStream tar_stream = null;
+                ContentManifest.DigestStream src_digest = null;
                 boolean src_has_cont = sourceCont.hasContent(sourceLang);
+                boolean tar_has_cont = targetCont.hasContent(targetLang);
                 try {
-                    src_stream = (src_has_cont || convertTransToOrig) ? sourceCont.getContentStream() : null;
-                    src_has_cont = (src_stream != null);
-                    tar_stream = targetCont.hasContent(targetLang) ? targetCont.getContentStream() : null;
-                    content_equals = streamsAreEqual(src_stream, tar_stream);
+                    if (src_has_cont && tar_has_cont && !convertTransToOrig && 
+                        (sourceCont.getContentLength() != targetCont.getContentLength())) {
+                        // Content differs; no need to read the content streams.
+                        content_equals = false;
+                    } else {
+                        src_stream = (src_has_cont || convertTransToOrig) ? sourceCont.getContentStream() : null;
+                        src_has_cont = (src_stream != null);
+                        if (src_has_cont && (manifest != null)) {
+                            // Calculate digest while comparing the content
+                            src_stream = src_digest = new ContentManifest.DigestStream(src_stream);
+                        }
+                        tar_stream = tar_has_cont ? targetCont.getContentStream() : null;
+                        content_equals = streamsAreEqual(src_stream, tar_stream);
+                    }
                 } finally {
                     if (src_stream != null) { 
                         try { src_stream.close(); } catch (Exception ex2) {}
@@ -1127,6 +1337,10 @@ public class DocStoreUtilities
                         targetCont.deleteContent();
                     } else {
                         src_stream = sourceCont.getContentStream();
+                        if (manifest != null) {
+                            // Calculate digest while writing the content
+                            src_stream = src_digest = new ContentManifest.DigestStream(src_stream);
+                        }
                         try {
                             targetCont.setContentStream(src_stream);
                         } finally {
@@ -1134,6 +1348,13 @@ public class DocStoreUtilities
                         }
                     }
                 }
+                if (src_digest != null) {
+                    if (src_digest.isEndReached()) {
+                        manifest.put(targetNode.getId(), targetLang, src_digest.getCount(), src_digest.getDigest());
+                    } else {
+                        manifest.putUndigested(targetNode.getId(), targetLang);
+                    }
+                }
                 if (do_commit) {  // restart transaction
                     targetSession.startTransaction();
                 }
@@ -1272,6 +1493,10 @@ public class DocStoreUtilities
         try {
             sourceSession.openDocStore(sourceStoreId, verId);
             targetSession.openDocStore(targetStoreId, verId);
+            // Read both versions from consistent snapshots without 
+            // causing any writes on commit.
+            sourceSession.startReadOnlyTransaction();
+            targetSession.startReadOnlyTransaction();
             // Verify original language
             progress.setMessage("text.copy_store_verify_version", verId.toString(), "original");
             verifyVersionLang(sourceSession, targetSession, null, extended, progress, stats);
@@ -1289,6 +1514,8 @@ public class DocStoreUtilities
             }
         } finally {
             progress.finishWork();
+            sourceSession.endReadOnlyTransaction();
+            targetSession.endReadOnlyTransaction();
             closeDocStoreSilent(sourceSession, "Verify version: closing of source store failed.");
             closeDocStoreSilent(targetSession, "Verify version: closing of target store failed.");
         }
@@ -1369,7 +1596,7 @@ public class DocStoreUtilities
             int steps = Math.max(1, stats.copiedNodes / VERIFY_PROGRESS_INCREMENT);
             progress.startWork(steps);
             try {
-                verifyVersionNode(sourceSession.getRoot(), targetSession.getRoot(), extended, progress, stats, 0);
+                verifyVersionNode(sourceSession.getRoot(), targetSession.getRoot(), lang, extended, progress, stats, 0);
                 if (stats.verifyErrors > MAX_VERIFY_ERRORS) {
                     progress.logInfo("text.copy_store_verify_exceeded_max_errors", verId.toString(), MAX_VERIFY_ERRORS, stats.verifyErrors);
                 }
@@ -1386,6 +1613,50 @@ public class DocStoreUtilities
         }
     }
 
+    private static void verifyContentDigest(DocContent srcCont, 
+                                            DocContent tarCont, 
+                                            String lang, 
+                                            ProgressCallback progress, 
+                                            CopyVersionStatistics stats)
+    {
+        ContentManifest.Entry entry = stats.contentManifest.get(tarCont.getId(), lang);
+        if (entry == null) {
+            return;  // no content has been copied for this node and language
+        }
+        String srcId = srcCont.getId();
+        try {
+            boolean equal;
+            if (! entry.hasDigest()) {
+                // Digest could not be calculated while copying the content.
+                if (DocConstants.DEBUG) Log.info("No content digest. Comparing content of node " + srcId);
+                equal = ContentComparator.contentEquals(srcCont, tarCont);
+            } else {
+                InputStream tar_stream = tarCont.getContentStream();
+                try {
+                    ContentManifest.DigestStream ds = ContentManifest.digestStream(tar_stream);
+                    equal = entry.matches(ds.getCount(), ds.getDigest());
+                } finally {
+                    tar_stream.close();
+                }
+            }
+            if (!equal && entry.hasDigest() && stats.compareContentOnMismatch) {
+                // Digest differs: compare source and target content byte by byte.
+                if (DocConstants.DEBUG) Log.info("Content digest mismatch. Comparing content of node " + srcId);
+                equal = ContentComparator.contentEquals(srcCont, tarCont);
+            }
+            if (! equal) {
+                if (++stats.verifyErrors <= MAX_VERIFY_ERRORS) {
+                    progress.logError("text.copy_store_content_differs", srcId);
+                }
+            }
+        } catch (Exception ex) {
+            if (++stats.verifyErrors <= MAX_VERIFY_ERRORS) {
+                progress.logError("text.copy_store_content_differs", srcId);
+            }
+            Log.warning("Verification of content of node " + srcId + " failed: " + ex.getMessage());
+        }
+    }
+
     private static boolean nodesHaveSameType(DocNode sourceNode, DocNode targetNode) throws DocException
     {
         if (sourceNode instanceof DocXML) {
@@ -1504,6 +1775,7 @@ public class DocStoreUtilities
     
     private static int verifyVersionNode(DocNode sourceNode,
                                          DocNode targetNode,
+                                         String lang, 
                                          boolean extended, 
                                          ProgressCallback progress, 
                                          CopyVersionStatistics stats, 
@@ -1583,6 +1855,9 @@ public class DocStoreUtilities
                     if (++stats.verifyErrors <= MAX_VERIFY_ERRORS) {
                         progress.logError("text.copy_store_content_length_differs", srcId, srcLen, tarLen);
                     }
+                } else if (stats.contentManifest != null) {
+                    if (DocConstants.DEBUG) Log.info("Verifying content digest of node " + srcId);
+                    verifyContentDigest(srcCont, tarCont, lang, progress, stats);
                 }
                 if (DocConstants.DEBUG) Log.info("Verifying content-type of node " + srcId);
                 String srcType = srcCont.getContentType();
@@ -1623,7 +1898,7 @@ public class DocStoreUtilities
             }
             int child_count = Math.min(srcChildren.length, tarChildren.length);
             for (int i = 0; i < child_count; i++) {
-                node_count = verifyVersionNode(srcChildren[i], tarChildren[i], 
+                node_count = verifyVersionNode(srcChildren[i], tarChildren[i], lang, 
                                                extended, progress, stats, node_count);
             }
         }
@@ -1671,46 +1946,7 @@ public class DocStoreUtilities
 
     private static boolean streamsAreEqual(InputStream stream1, InputStream stream2) throws Exception
     {
-        // Handle missing content (null values)
-        if ((stream1 == null) || (stream2 == null)) {
-            return ((stream1 == null) && (stream2 == null));
-        }
-        
-        byte[] buf1 = new byte[128*1024];
-        byte[] buf2 = new byte[128*1024];
-        int cnt1 = 0, cnt2 = 0; 
-        int pos1 = 0, pos2 = 0; 
-        while (true) {
-            int remain1 = cnt1 - pos1;
-            int remain2 = cnt2 - pos2;
-            int remaining = Math.min(remain1, remain2);
-            for (int i=0; i < remaining; i++) {  // compare bytes in buffers
-                if (buf1[pos1++] != buf2[pos2++]) {
-                    return false;  // streams differ
-                }
-            }
-            if (pos1 >= cnt1) {  // all bytes in buf1 have been processed
-                do { 
-                    cnt1 = stream1.read(buf1);
-                } while (cnt1 == 0);
-                pos1 = 0;
-            }
-            if (pos2 >= cnt2) {  // all bytes in buf2 have been processed
-                do {
-                    cnt2 = stream2.read(buf2);
-                } while (cnt2 == 0);
-                pos2 = 0;
-            }
-            boolean finished1 = (cnt1 < 0);
-            boolean finished2 = (cnt2 < 0);
-            if (finished1 || finished2) { // at least one stream has reached the end
-                if (finished1 && finished2) {  // both streams have reached the end
-                    break; // streams are equal
-                }
-                return false;  // streams have different length -> streams differ
-            }
-        }
-        return true; // streams are equal
+        return ContentComparator.streamsAreEqual(stream1, stream2);
     }
     
     static class CopyVersionStatistics
@@ -1718,5 +1954,7 @@ public class DocStoreUtilities
         String[] copiedTranslations = null;
         int copiedNodes = 0;
         int verifyErrors = 0;
+        ContentManifest contentManifest = null;  // null if content is not verified by digest
+        boolean compareContentOnMismatch = true;
     }
 }
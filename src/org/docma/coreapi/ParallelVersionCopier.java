@@ -0,0 +1,279 @@
+/*
+ * ParallelVersionCopier.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.docma.util.Log;
+
+/**
+ * Copies the version tree of a store with a bounded pool of worker threads.
+ * A version is copied only after the version it is derived from has been
+ * copied. Sibling versions (i.e. the sub-versions of the same version) are
+ * copied concurrently. Each worker thread uses its own source and target
+ * session, which are opened through the managers supplied in the
+ * <code>CopyStoreOptions</code>.
+ *
+ * @author MP
+ */
+class ParallelVersionCopier
+{
+    private static final AtomicInteger poolCounter = new AtomicInteger(0);
+
+    private final CopyStoreOptions options;
+    private final String userId;
+    private final String sourceStoreId;
+    private final String targetStoreId;
+    private final Set<DocVersionId> skipVerIds;
+    private final String[] trans;
+    private final String transAsOrig;
+    private final String origAsTrans;
+    private final ProgressCallback progress;
+    private final boolean verify;
+    private final boolean incremental;
+
+    private final BlockingQueue<SessionPair> idleSessions = new LinkedBlockingQueue<SessionPair>();
+    private final List<SessionPair> allSessions = new ArrayList<SessionPair>();
+    private final List<WorkerProgressCallback> workerProgress = new ArrayList<WorkerProgressCallback>();
+    private boolean aborted = false;
+
+
+    ParallelVersionCopier(CopyStoreOptions options,
+                          String userId,
+                          String sourceStoreId,
+                          String targetStoreId,
+                          Set<DocVersionId> skipVerIds,
+                          String[] trans,
+                          String transAsOrig,
+                          String origAsTrans,
+                          ProgressCallback progress,
+                          boolean verify,
+                          boolean incremental)
+    {
+        this.options = options;
+        this.userId = userId;
+        this.sourceStoreId = sourceStoreId;
+        this.targetStoreId = targetStoreId;
+        this.skipVerIds = skipVerIds;
+        this.trans = trans;
+        this.transAsOrig = transAsOrig;
+        this.origAsTrans = origAsTrans;
+        this.progress = progress;
+        this.verify = verify;
+        this.incremental = incremental;
+    }
+
+    /**
+     * Copies the given root versions and all versions derived from them.
+     * The supplied source session is only used by the calling thread to
+     * determine the sub-versions of finished versions.
+     */
+    void copyVersions(DocStoreSession sourceSession, DocVersionId[] rootVerIds)
+    throws DocException
+    {
+        final int poolId = poolCounter.incrementAndGet();
+        ExecutorService executor = Executors.newFixedThreadPool(options.getMaxThreads(), new ThreadFactory() {
+            private int threadCount = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "docma-copy-" + poolId + "-" + (++threadCount));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        CompletionService<DocVersionId> completion = new ExecutorCompletionService<DocVersionId>(executor);
+        int pending = 0;
+        boolean failed = true;
+        try {
+            for (DocVersionId vid : rootVerIds) {
+                completion.submit(new VersionTask(vid));
+                pending++;
+            }
+            while (pending > 0) {
+                Future<DocVersionId> finished = completion.take();
+                pending--;
+                DocVersionId vid = getResult(finished);
+                DocStoreUtilities.checkCanceledByUser(progress);
+
+                // The version has been copied. Now its sub-versions can be copied.
+                DocVersionId[] subvers = sourceSession.getSubVersions(sourceStoreId, vid);
+                for (DocVersionId sub : subvers) {
+                    completion.submit(new VersionTask(sub));
+                    pending++;
+                }
+            }
+            failed = false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DocException(ex);
+        } finally {
+            if (failed) {
+                abortWorkers();
+            }
+            executor.shutdown();
+            try {
+                // Running workers stop at the next cancel check.
+                while (! executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    Log.info("Waiting for running copy operations to be stopped.");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            closeSessions();
+        }
+    }
+
+    /* --------------  Private methods  ---------------------- */
+
+    private DocVersionId getResult(Future<DocVersionId> future) throws DocException, InterruptedException
+    {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof DocException) throw (DocException) cause;
+            if (cause instanceof DocRuntimeException) throw (DocRuntimeException) cause;
+            throw new DocException(cause);
+        }
+    }
+
+    private synchronized WorkerProgressCallback createWorkerProgress()
+    {
+        WorkerProgressCallback wp = new WorkerProgressCallback(progress);
+        if (aborted) {
+            wp.abort();
+        }
+        workerProgress.add(wp);
+        return wp;
+    }
+
+    private synchronized void abortWorkers()
+    {
+        aborted = true;
+        for (WorkerProgressCallback wp : workerProgress) {
+            wp.abort();
+        }
+    }
+
+    private SessionPair acquireSessions() throws DocException
+    {
+        SessionPair pair = idleSessions.poll();
+        if (pair == null) {
+            // Each worker thread requires its own sessions. The number of
+            // session pairs is therefore bounded by the number of threads.
+            DocStoreSession src = options.getSourceManager().connect(userId);
+            DocStoreSession tar;
+            try {
+                tar = options.getTargetManager().connect(userId);
+            } catch (DocException ex) {
+                src.closeSession();
+                throw ex;
+            }
+            pair = new SessionPair(src, tar);
+            synchronized (allSessions) {
+                allSessions.add(pair);
+            }
+        }
+        return pair;
+    }
+
+    private void releaseSessions(SessionPair pair)
+    {
+        // A failed copy operation may leave the version open.
+        closeDocStoreSilent(pair.source);
+        closeDocStoreSilent(pair.target);
+        idleSessions.offer(pair);
+    }
+
+    private void closeSessions()
+    {
+        synchronized (allSessions) {
+            for (SessionPair pair : allSessions) {
+                closeSessionSilent(pair.source);
+                closeSessionSilent(pair.target);
+            }
+            allSessions.clear();
+        }
+        idleSessions.clear();
+    }
+
+    private static void closeDocStoreSilent(DocStoreSession sess)
+    {
+        try {
+            if (sess.getStoreId() != null) {
+                sess.closeDocStore();
+            }
+        } catch (Exception ex) {
+            Log.warning("Closing of store in copy worker session failed: " + ex.getMessage());
+        }
+    }
+
+    private static void closeSessionSilent(DocStoreSession sess)
+    {
+        closeDocStoreSilent(sess);
+        try {
+            sess.closeSession();
+        } catch (Exception ex) {
+            Log.warning("Closing of copy worker session failed: " + ex.getMessage());
+        }
+    }
+
+    /* --------------  Inner classes  ---------------------- */
+
+    private static class SessionPair
+    {
+        final DocStoreSession source;
+        final DocStoreSession target;
+
+        SessionPair(DocStoreSession source, DocStoreSession target)
+        {
+            this.source = source;
+            this.target = target;
+        }
+    }
+
+    private class VersionTask implements Callable<DocVersionId>
+    {
+        private final DocVersionId verId;
+
+        VersionTask(DocVersionId verId)
+        {
+            this.verId = verId;
+        }
+
+        public DocVersionId call() throws Exception
+        {
+            WorkerProgressCallback wp = createWorkerProgress();
+            DocStoreUtilities.checkCanceledByUser(wp);
+            if (skipVerIds.contains(verId)) {
+                return verId;  // only the sub-versions have to be copied
+            }
+            SessionPair sessions = acquireSessions();
+            try {
+                DocStoreUtilities.copyVersionWithRetry(sessions.source, sourceStoreId,
+                                                       sessions.target, targetStoreId,
+                                                       verId, trans, transAsOrig, origAsTrans,
+                                                       wp, verify, incremental, options);
+            } catch (Exception ex) {
+                abortWorkers();  // stop concurrently running workers
+                throw ex;
+            } finally {
+                releaseSessions(sessions);
+            }
+            return verId;
+        }
+    }
+}
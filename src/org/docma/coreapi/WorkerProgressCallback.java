@@ -0,0 +1,267 @@
+/*
+ * WorkerProgressCallback.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi;
+
+import org.docma.plugin.LogEntry;
+import org.docma.plugin.LogLevel;
+
+/**
+ * Progress callback that is used by a worker thread of a parallel operation.
+ * Log messages and finished top-level steps are forwarded to the shared
+ * callback (synchronized on the shared callback). Nested work levels that
+ * are started by the worker are tracked locally, because the nesting of
+ * concurrently running workers would otherwise be mixed up.
+ *
+ * @author MP
+ */
+class WorkerProgressCallback implements ProgressCallback
+{
+    private final ProgressCallback shared;
+    private int workLevel = -1;
+    private volatile boolean abortFlag = false;
+
+    WorkerProgressCallback(ProgressCallback shared)
+    {
+        this.shared = shared;
+    }
+
+    /**
+     * Causes getCancelFlag() to return true, e.g. if a concurrently running
+     * worker has failed and the complete operation has to be stopped.
+     */
+    void abort()
+    {
+        abortFlag = true;
+    }
+
+    public void setMessage(String labelKey, Object... args)
+    {
+        synchronized (shared) {
+            shared.setMessage(labelKey, args);
+        }
+    }
+
+    public String getMessageKey()
+    {
+        synchronized (shared) {
+            return shared.getMessageKey();
+        }
+    }
+
+    public Object[] getMessageArgs()
+    {
+        synchronized (shared) {
+            return shared.getMessageArgs();
+        }
+    }
+
+    public int getPercent()
+    {
+        synchronized (shared) {
+            return shared.getPercent();
+        }
+    }
+
+    public void setPercent(int percent)
+    {
+        // The percentage is controlled by the shared callback.
+    }
+
+    public void startWork()
+    {
+        startWork(1);
+    }
+
+    public void startWork(int stepsTotal)
+    {
+        ++workLevel;
+    }
+
+    public void finishWork()
+    {
+        if (workLevel >= 0) {
+            --workLevel;
+        }
+    }
+
+    public void setStepsTotal(int stepsTotal)
+    {
+        // Total number of steps is set by the caller of the parallel operation.
+    }
+
+    public int getStepsTotal()
+    {
+        synchronized (shared) {
+            return shared.getStepsTotal();
+        }
+    }
+
+    public void setStepsFinished(int stepsFinished)
+    {
+        // Ignore: concurrently running workers cannot set an absolute value.
+    }
+
+    public void stepFinished()
+    {
+        if (workLevel < 0) {  // step on the level of the shared callback
+            synchronized (shared) {
+                shared.stepFinished();
+            }
+        }
+    }
+
+    public int getStepsFinished()
+    {
+        synchronized (shared) {
+            return shared.getStepsFinished();
+        }
+    }
+
+    public void setFinished()
+    {
+        // The shared callback is finished by the caller of the parallel operation.
+    }
+
+    public boolean isFinished()
+    {
+        synchronized (shared) {
+            return shared.isFinished();
+        }
+    }
+
+    public void log(LogEntry entry)
+    {
+        synchronized (shared) {
+            shared.log(entry);
+        }
+    }
+
+    public void log(LogLevel level, String msg, Object[] args)
+    {
+        synchronized (shared) {
+            shared.log(level, msg, args);
+        }
+    }
+
+    public void log(LogLevel level, String generator, String msg, Object[] args)
+    {
+        synchronized (shared) {
+            shared.log(level, generator, msg, args);
+        }
+    }
+
+    public void log(LogLevel level, String generator, String location, String msg, Object[] args)
+    {
+        synchronized (shared) {
+            shared.log(level, generator, location, msg, args);
+        }
+    }
+
+    public void logError(String msg, Object... args)
+    {
+        synchronized (shared) {
+            shared.logError(msg, args);
+        }
+    }
+
+    public int getErrorCount()
+    {
+        synchronized (shared) {
+            return shared.getErrorCount();
+        }
+    }
+
+    public void logWarning(String msg, Object... args)
+    {
+        synchronized (shared) {
+            shared.logWarning(msg, args);
+        }
+    }
+
+    public int getWarningCount()
+    {
+        synchronized (shared) {
+            return shared.getWarningCount();
+        }
+    }
+
+    public void logInfo(String msg, Object... args)
+    {
+        synchronized (shared) {
+            shared.logInfo(msg, args);
+        }
+    }
+
+    public int getInfoCount()
+    {
+        synchronized (shared) {
+            return shared.getInfoCount();
+        }
+    }
+
+    public void logHeader(int headLevel, String msg, Object... args)
+    {
+        synchronized (shared) {
+            shared.logHeader(headLevel, msg, args);
+        }
+    }
+
+    public void logText(String headline, String txt)
+    {
+        synchronized (shared) {
+            shared.logText(headline, txt);
+        }
+    }
+
+    public int getLogCount()
+    {
+        synchronized (shared) {
+            return shared.getLogCount();
+        }
+    }
+
+    public LogEntry[] getLog()
+    {
+        synchronized (shared) {
+            return shared.getLog();
+        }
+    }
+
+    public LogEntry[] getLog(int fromIndex, int toIndex)
+    {
+        synchronized (shared) {
+            return shared.getLog(fromIndex, toIndex);
+        }
+    }
+
+    public LogEntry[] getLog(boolean infos, boolean warnings, boolean errors)
+    {
+        synchronized (shared) {
+            return shared.getLog(infos, warnings, errors);
+        }
+    }
+
+    public boolean getCancelFlag()
+    {
+        return abortFlag || shared.getCancelFlag();
+    }
+
+    public void setCancelFlag(boolean cancelFlag)
+    {
+        synchronized (shared) {
+            shared.setCancelFlag(cancelFlag);
+        }
+    }
+}
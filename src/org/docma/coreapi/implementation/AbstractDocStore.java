@@ -15,6 +15,7 @@
 package org.docma.coreapi.implementation;
 
 import java.util.*;
+import java.util.concurrent.Executor;
 import org.docma.coreapi.*;
 import org.docma.lockapi.*;
 import org.docma.util.Log;
@@ -28,10 +29,13 @@ public abstract class AbstractDocStore
     protected String storeId;
     protected DocVersionId verId;
     protected LockManager lockManager;
-    protected List docListeners = new ArrayList();
+    protected List<DocListener> docListeners = new ListenerRegistry<DocListener>();
 
     private List eventQueue = new ArrayList();
     private boolean dispatch_running = false;
+    private boolean queue_overflow = false;
+    private AsyncDocEventDispatcher asyncDispatcher = null;
+    private volatile int structureChangeThreshold = EventQueueUtil.DEFAULT_STRUCTURE_CHANGE_THRESHOLD;
 
 
     protected AbstractDocStore(String storeId, DocVersionId verId)
@@ -56,7 +60,7 @@ public abstract class AbstractDocStore
             String pId = (parent == null) ? null : parent.getId();
             String nodeId = (node == null) ? null : node.getId();
             DocEvent evt = new DocEventImpl(DocEvent.NODES_ADDED, pId, nodeId, null);
-            eventQueue.add(evt);
+            queueEvent(evt);
         }
     }
 
@@ -66,7 +70,7 @@ public abstract class AbstractDocStore
             String pId = (parent == null) ? null : parent.getId();
             String nodeId = (node == null) ? null : node.getId();
             DocEvent evt = new DocEventImpl(DocEvent.NODES_REMOVED, pId, nodeId, null);
-            eventQueue.add(evt);
+            queueEvent(evt);
         }
     }
 
@@ -76,7 +80,27 @@ public abstract class AbstractDocStore
             String pId = (parent == null) ? null : parent.getId();
             String nodeId = (node == null) ? null : node.getId();
             DocEvent evt = new DocEventImpl(DocEvent.NODES_CHANGED, pId, nodeId, lang);
-            eventQueue.add(evt);
+            queueEvent(evt);
+        }
+    }
+
+
+    /* ----------------  Private methods  ------------------ */
+
+    private void queueEvent(DocEvent evt)
+    {
+        if (queue_overflow) {
+            return;  // queue has been replaced by a structure-changed event
+        }
+        eventQueue.add(evt);
+        int max = (asyncDispatcher != null) ? asyncDispatcher.getMaxPendingEvents() : 0;
+        if (EventQueueUtil.exceedsStructureChangeThreshold(eventQueue.size(), structureChangeThreshold) ||
+            ((max > 0) && (eventQueue.size() > max))) {
+            // Bound the memory used by large transactions. 
+            // Listeners have to reload the complete tree anyway.
+            eventQueue.clear();
+            eventQueue.add(EventQueueUtil.createStructureChangedEvent());
+            queue_overflow = true;
         }
     }
 
@@ -100,25 +124,24 @@ public abstract class AbstractDocStore
 
     public void addDocListener(DocListener listener)
     {
-        removeDocListener(listener);
         docListeners.add(listener);
     }
 
     public boolean removeDocListener(DocListener listener)
     {
-        for (int i=0; i < docListeners.size(); i++) {
-            if (docListeners.get(i) == listener) {
-                docListeners.remove(i);
-                return true;
+        if (docListeners.remove(listener)) {
+            AsyncDocEventDispatcher async = getAsyncDispatcher();
+            if (async != null) {
+                async.removeListener(listener);
             }
+            return true;
         }
         return false;
     }
 
     public DocListener[] getDocListeners()
     {
-        DocListener[] arr = new DocListener[docListeners.size()];
-        return (DocListener[]) docListeners.toArray(arr);
+        return docListeners.toArray(new DocListener[0]);
     }
 
     public synchronized void dispatchEventQueue()
@@ -133,12 +156,17 @@ public abstract class AbstractDocStore
         try {
             if (! (docListeners.isEmpty() || eventQueue.isEmpty())) {
                 List q = new ArrayList(eventQueue);  // q is copy of eventQueue
-                // Thread th = new Thread(new DocEventDispatcher(docListeners, q));
-                // th.start();
-                DocEventDispatcher dp = new DocEventDispatcher(docListeners, q);
-                dp.run();
+                if (asyncDispatcher != null) {
+                    EventQueueUtil.compressEvents(q, structureChangeThreshold);
+                    asyncDispatcher.dispatch(getDocListeners(), q);
+                } else {
+                    DocEventDispatcher dp = 
+                        new DocEventDispatcher(ListenerRegistry.snapshotOf(docListeners), q, structureChangeThreshold);
+                    dp.run();
+                }
             }
             eventQueue.clear();
+            queue_overflow = false;
         } finally {
             dispatch_running = false;
         }
@@ -147,6 +175,125 @@ public abstract class AbstractDocStore
     public synchronized void discardEventQueue()
     {
         this.eventQueue.clear();
+        this.queue_overflow = false;
+    }
+
+    /**
+     * Enables or disables asynchronous dispatching of events.
+     * If enabled, dispatchEventQueue() returns immediately and the events
+     * are delivered by a pool of dispatcher threads that is owned by this 
+     * store instance. Each listener receives its events in order, 
+     * independent of other listeners.
+     * If more than maxPendingEvents events are pending for a listener,
+     * the pending events are coalesced to a single NODES_STRUCTURE_CHANGED
+     * event. The value 0 means no limit.
+     * 
+     * @param async  true to enable asynchronous dispatching
+     * @param maxPendingEvents  maximum number of pending events per listener
+     */
+    public void setAsyncEventDispatch(boolean async, int maxPendingEvents)
+    {
+        setAsyncEventDispatch(async, maxPendingEvents, null);
+    }
+
+    /**
+     * Same as {@link #setAsyncEventDispatch(boolean, int)}, but the events
+     * are delivered by the given executor, e.g. a pool that is shared by
+     * the stores of one manager. If <code>executor</code> is null, the
+     * store instance uses its own pool. The executor cannot be changed
+     * while asynchronous dispatching is enabled.
+     */
+    public synchronized void setAsyncEventDispatch(boolean async, int maxPendingEvents, Executor executor)
+    {
+        if (async) {
+            if (asyncDispatcher == null) {
+                asyncDispatcher = (executor == null) ? new AsyncDocEventDispatcher(maxPendingEvents)
+                                  : new AsyncDocEventDispatcher(maxPendingEvents, executor);
+            } else {
+                asyncDispatcher.setMaxPendingEvents(maxPendingEvents);
+            }
+        } else {
+            asyncDispatcher = null;
+        }
+    }
+
+    public int getStructureChangeThreshold()
+    {
+        return structureChangeThreshold;
+    }
+
+    /**
+     * Sets the maximum number of queued events of this store instance. 
+     * If the number of queued events exceeds this value, the events are 
+     * replaced by a single NODES_STRUCTURE_CHANGED event. The value 0 
+     * means no limit. Applies to synchronous and asynchronous dispatching.
+     */
+    public void setStructureChangeThreshold(int threshold)
+    {
+        this.structureChangeThreshold = Math.max(0, threshold);
+    }
+
+    public synchronized boolean isAsyncEventDispatch()
+    {
+        return (asyncDispatcher != null);
+    }
+
+    /**
+     * Returns the number of events that are waiting to be delivered
+     * to the listeners (asynchronous mode only).
+     */
+    public int getPendingEventCount()
+    {
+        AsyncDocEventDispatcher async = getAsyncDispatcher();
+        return (async == null) ? 0 : async.getPendingEventCount();
+    }
+
+    /**
+     * Returns the maximum number of events that have been pending for
+     * a single listener (asynchronous mode only).
+     */
+    public int getMaxPendingEventCount()
+    {
+        AsyncDocEventDispatcher async = getAsyncDispatcher();
+        return (async == null) ? 0 : async.getMaxPendingSeen();
+    }
+
+    public long getDispatchedEventCount()
+    {
+        AsyncDocEventDispatcher async = getAsyncDispatcher();
+        return (async == null) ? 0 : async.getDispatchedEventCount();
+    }
+
+    /**
+     * Returns the number of events that have not been delivered, because
+     * they have been coalesced to a NODES_STRUCTURE_CHANGED event 
+     * (asynchronous mode only).
+     */
+    public long getCoalescedEventCount()
+    {
+        AsyncDocEventDispatcher async = getAsyncDispatcher();
+        return (async == null) ? 0 : async.getCoalescedEventCount();
+    }
+
+    /**
+     * Returns how often the pending events of a listener exceeded the
+     * configured maximum (asynchronous mode only).
+     */
+    public long getEventOverflowCount()
+    {
+        AsyncDocEventDispatcher async = getAsyncDispatcher();
+        return (async == null) ? 0 : async.getOverflowCount();
+    }
+
+    public long getListenerErrorCount()
+    {
+        AsyncDocEventDispatcher async = getAsyncDispatcher();
+        return (async == null) ? 0 : async.getListenerErrorCount();
+    }
+
+    private synchronized AsyncDocEventDispatcher getAsyncDispatcher()
+    {
+        return asyncDispatcher;
     }
 
 }
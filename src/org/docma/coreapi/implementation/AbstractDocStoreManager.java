@@ -14,196 +14,388 @@
 
 package org.docma.coreapi.implementation;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 import org.docma.coreapi.*;
 import org.docma.util.*;
 
 /**
+ * Base class of store managers. Store instances are kept in a concurrent 
+ * map, where each entry records the sessions that have acquired the store
+ * instance (i.e. the reference count of the instance). Acquiring and 
+ * releasing a store instance only locks the map entry of the requested 
+ * store version. Therefore sessions that open different versions do not 
+ * block each other.
+ * <p>
+ * Optionally, store instances that are no longer used by any session are 
+ * kept in a cache of idle instances (see <code>setStoreCacheMaxIdle()</code>
+ * and <code>setStoreCacheIdleTimeout()</code>). If the number of idle 
+ * instances exceeds the maximum, the least recently released instance is 
+ * evicted. Idle instances are also evicted after the idle timeout.
+ * </p>
  *
  * @author MP
  */
 public abstract class AbstractDocStoreManager implements DocStoreManager
 {
     private VersionIdFactory verIdFactory = null;
-    private List openSessions = new ArrayList(100);
-    private Map docStores = new HashMap();
 
-    private long nextSessionId = 0;
+    // Maps each open session to the keys of the store instances acquired by the session
+    private final ConcurrentMap<DocStoreSession, Set<String>> openSessions = 
+        new ConcurrentHashMap<DocStoreSession, Set<String>>(100);
+    private final ConcurrentMap<String, StoreEntry> docStores = 
+        new ConcurrentHashMap<String, StoreEntry>();
 
-    private Map uuidMap = null;
+    private final AtomicLong nextSessionId = new AtomicLong(0);
+
+    // Cache of store instances that are not acquired by any session (in release order)
+    private final Object idleLock = new Object();
+    private final LinkedHashMap<String, StoreEntry> idleStores = new LinkedHashMap<String, StoreEntry>();
+    private volatile int storeCacheMaxIdle = 0;       // 0 means instances are not cached
+    private volatile long storeCacheIdleTimeout = 10 * 60 * 1000L;
+    private final AtomicLong storeCacheHits = new AtomicLong(0);
+    private final AtomicLong storeCacheMisses = new AtomicLong(0);
+    private final AtomicLong storeCacheEvictions = new AtomicLong(0);
+
+    private final UUIDIndex uuidIndex = new UUIDIndex(this);
+    private final ImageRenditionCache renditionCache = new ImageRenditionCache();
+
+    private volatile RenditionPrewarmer renditionPrewarmer = null;
+    private volatile boolean asyncEventDispatch = false;
+    private volatile int maxPendingEvents = 1000;
+    private volatile int structureChangeThreshold = EventQueueUtil.DEFAULT_STRUCTURE_CHANGE_THRESHOLD;
+    private final Object eventExecutorLock = new Object();
+    private ThreadPoolExecutor eventExecutor = null;
+    private int eventDispatchThreads = AsyncDocEventDispatcher.DEFAULT_POOL_SIZE;
 
 
     /* --------------  Private methods  ----------------------------- */
 
+    private Executor getEventDispatchExecutor()
+    {
+        synchronized (eventExecutorLock) {
+            if (eventExecutor == null) {
+                eventExecutor = AsyncDocEventDispatcher.createExecutor(eventDispatchThreads);
+            }
+            return eventExecutor;
+        }
+    }
+
     private String getStoreKey(String storeId, DocVersionId verId)
     {
         return storeId + " " + verId;
     }
 
-    private void deleteStore(String storeId, DocVersionId verId)
+    /**
+     * Returns the locked entry for the given key. If no entry exists, a new 
+     * entry is created. The caller has to hold the monitor of the returned 
+     * entry until the entry has been updated. 
+     */
+    private StoreEntry getEntry(String key, String storeId, DocVersionId verId)
     {
-        docStores.remove(getStoreKey(storeId, verId));
+        StoreEntry entry = docStores.get(key);
+        if (entry == null) {
+            StoreEntry new_entry = new StoreEntry(storeId, verId);
+            entry = docStores.putIfAbsent(key, new_entry);
+            if (entry == null) {
+                entry = new_entry;
+            }
+        }
+        return entry;
     }
 
-    private void deleteStores(String storeId)
+    /**
+     * Removes the entry from the map. The caller has to hold the monitor 
+     * of the entry.
+     */
+    private void removeEntry(String key, StoreEntry entry)
     {
-        Iterator it = docStores.values().iterator();
-        while (it.hasNext()) {
-            AbstractDocStore store = (AbstractDocStore) it.next();
-            if (store.getStoreId().equals(storeId)) {
-                it.remove();
-            }
+        entry.removed = true;
+        docStores.remove(key, entry);
+        if (entry.idleSince > 0) {
+            removeIdle(key, entry);
+        }
+        RenditionPrewarmer prewarmer = renditionPrewarmer;
+        if ((prewarmer != null) && (entry.store != null)) {
+            prewarmer.unregister(entry.store);
         }
     }
 
-    private void initUUIDMap(DocStoreSession sess)
-    {
-        if (uuidMap == null) {
-            uuidMap = new HashMap(300);
-            String[] store_ids = sess.listDocStores();
-            for (int i=0; i < store_ids.length; i++) {
-                String store_id = store_ids[i];
-                try {
-                    UUID store_uuid = sess.getDocStoreUUID(store_id);
-                    // Note: The method sess.getDocStoreUUID() might call
-                    //       registerDocStoreUUID() which calls again initUUIDMap().
-                    //       However, because uuidMap is no longer null, this does
-                    //       not lead to an infinite loop.
-                    uuidMap.put(store_uuid, store_id);
-                } catch (Exception ex) {
-                    Log.error("Could not get UUID of store '" + store_id + "'.");
-                    // Note: Maybe the store has invalid configuration, e.g.
-                    //       the configured store path that does not exist.
-                    continue;
-                }
-                try {
-                    DocVersionId[] ver_ids = sess.listVersions(store_id);
-                    for (int k=0; k < ver_ids.length; k++) {
-                        DocVersionId v_id = ver_ids[k];
-                        DocVersionAddress v_addr = new DocVersionAddress(store_id, v_id);
-                        try {
-                            UUID v_uuid = sess.getVersionUUID(store_id, v_id);
-                            // Note: see note above about avoiding infinite loop.
-                            uuidMap.put(v_uuid, v_addr);
-                        } catch (Exception ex) {
-                            Log.error("Could not get UUID of version '" +
-                                      store_id + " V" + v_id + "':" + ex.getMessage());
+    private void releaseEntry(DocStoreSession sess, String key)
+    {
+        StoreEntry entry = docStores.get(key);
+        if (entry != null) {
+            boolean cached = false;
+            synchronized (entry) {
+                entry.sessions.remove(sess);
+                if (entry.sessions.isEmpty() && !entry.removed) {
+                    if (storeCacheMaxIdle > 0) {
+                        // Keep instance for later use
+                        entry.idleSince = System.currentTimeMillis();
+                        synchronized (idleLock) {
+                            idleStores.remove(key);
+                            idleStores.put(key, entry);  // most recently released is last
                         }
+                        cached = true;
+                    } else {
+                        removeEntry(key, entry);
                     }
-                } catch (Exception ex) {
-                    Log.error("Could not list versions of store '" + store_id + "':" + ex.getMessage());
-                    ex.printStackTrace();
                 }
             }
+            if (cached) {
+                evictIdleStores();
+            }
         }
     }
 
-    /* ------  Package local methods called by AbstractDocStoreSession  ----- */
-
-    synchronized void registerDocStoreUUID(DocStoreSession sess, UUID uuid, String storeId)
-    {
-        if (uuidMap == null) {
-            // initUUIDMap(sess);
-            // Note: Calling initUUIDMap() within registerDocStoreUUID() causes
-            //       problem, because initUUIDMap() accesses all stores, which
-            //       can lead to a blocking call in case of an external database 
-            //       store, e.g. if database is temporarily not available.
-            //       Therefore, AbstractDocStoreSession.getDocStoreUUID(storeId),
-            //       which calls registerDocStoreUUID(), should not require 
-            //       access to any other store than the store identified by storeId.
-            return;
-        }
-        Object obj = uuidMap.get(uuid);
-        if (obj == null) {
-            uuidMap.put(uuid, storeId);
-        } else {
-            if (! storeId.equals(obj)) throw new DocRuntimeException("Cannot reassign UUID!");
+    /**
+     * Removes the entry from the cache of idle instances. The caller has to
+     * hold the monitor of the entry.
+     */
+    private void removeIdle(String key, StoreEntry entry)
+    {
+        entry.idleSince = 0;
+        synchronized (idleLock) {
+            if (idleStores.get(key) == entry) {
+                idleStores.remove(key);
+            }
         }
     }
 
-    synchronized void registerVersionUUID(DocStoreSession sess, UUID uuid, DocVersionAddress versionAddr)
+    /**
+     * Removes the given idle entry from the map, unless the entry has been
+     * acquired again since it has been selected for eviction.
+     */
+    private void evictEntry(String key, StoreEntry entry, long idleSince)
     {
-        if (uuidMap == null) {
-            // initUUIDMap(sess);
-            // Note: Calling initUUIDMap() within registerVersionUUID() causes
-            //       problem, because initUUIDMap() accesses all stores, which
-            //       can lead to a blocking call in case of an external database 
-            //       store, e.g. if database is temporarily not available.
-            //       Therefore, AbstractDocStoreSession.getVersionUUID(storeId, verId),
-            //       which calls registerVersionUUID(), should not require 
-            //       access to any other store than the store identified by storeId.
-            return;
+        synchronized (entry) {
+            if (!entry.removed && entry.sessions.isEmpty() && (entry.idleSince == idleSince)) {
+                removeEntry(key, entry);
+                storeCacheEvictions.incrementAndGet();
+                if (DocConstants.DEBUG) {
+                    Log.info("Evicted idle store instance " + entry.storeId + " " + entry.verId);
+                }
+            }
         }
-        Object obj = uuidMap.get(uuid);
-        if (obj == null) {
-            uuidMap.put(uuid, versionAddr);
-        } else {
-            if (! versionAddr.equals(obj)) throw new DocRuntimeException("Cannot reassign UUID!");
+    }
+
+    private static void addUserIds(StoreEntry entry, Set<String> userIds)
+    {
+        for (DocStoreSession sess : entry.sessions.keySet()) {
+            userIds.add(sess.getUserId());
         }
     }
 
-    synchronized String getDocStoreIdByUUID(DocStoreSession sess, UUID uuid)
+    /* ------  Package local methods called by AbstractDocStoreSession  ----- */
+
+    ImageRenditionCache getImageRenditionCache()
+    {
+        return renditionCache;
+    }
+
+    void registerDocStoreUUID(DocStoreSession sess, UUID uuid, String storeId)
+    {
+        // Note: Registration must not access any other store than the store 
+        //       identified by storeId, because access to an external database
+        //       store might block, e.g. if database is temporarily not available.
+        uuidIndex.registerStore(uuid, storeId);
+    }
+
+    void registerVersionUUID(DocStoreSession sess, UUID uuid, DocVersionAddress versionAddr)
+    {
+        uuidIndex.registerVersion(uuid, versionAddr);
+    }
+
+    String getDocStoreIdByUUID(DocStoreSession sess, UUID uuid)
     {
-        initUUIDMap(sess);
-        Object obj = uuidMap.get(uuid);
-        return (obj instanceof String) ? (String) obj : null;
+        return uuidIndex.getDocStoreId(sess, uuid);
     }
 
-    synchronized DocVersionAddress getVersionAddressByUUID(DocStoreSession sess, UUID uuid)
+    DocVersionAddress getVersionAddressByUUID(DocStoreSession sess, UUID uuid)
     {
-        initUUIDMap(sess);
-        Object obj = uuidMap.get(uuid);
-        return (obj instanceof DocVersionAddress) ? (DocVersionAddress) obj : null;
+        return uuidIndex.getVersionAddress(sess, uuid);
     }
 
     /* ---------  Called by DocStoreSession Implementation  -------------- */
 
-    public synchronized AbstractDocStore acquireStore(DocStoreSession sess, String storeId, DocVersionId verId)
+    public AbstractDocStore acquireStore(DocStoreSession sess, String storeId, DocVersionId verId)
     {
         String key = getStoreKey(storeId, verId);
-        AbstractDocStore ds = (AbstractDocStore) docStores.get(key);
-        if (ds == null) {
-            ds = createStoreInstance(sess, storeId, verId);
-            docStores.put(key, ds);
+        while (true) {
+            StoreEntry entry = getEntry(key, storeId, verId);
+            synchronized (entry) {
+                if (entry.removed) {
+                    continue;  // entry has been removed concurrently; retry with new entry
+                }
+                if (entry.store == null) {
+                    storeCacheMisses.incrementAndGet();
+                    entry.store = createStoreInstance(sess, storeId, verId);
+                    entry.store.setStructureChangeThreshold(structureChangeThreshold);
+                    if (asyncEventDispatch) {
+                        entry.store.setAsyncEventDispatch(true, maxPendingEvents, getEventDispatchExecutor());
+                    }
+                    RenditionPrewarmer prewarmer = renditionPrewarmer;
+                    if (prewarmer != null) {
+                        prewarmer.register(entry.store);
+                    }
+                } else {
+                    storeCacheHits.incrementAndGet();
+                    if (entry.idleSince > 0) {
+                        removeIdle(key, entry);  // instance is no longer idle
+                    }
+                }
+                entry.sessions.put(sess, Boolean.TRUE);
+                Set<String> keys = openSessions.get(sess);
+                if (keys != null) {
+                    keys.add(key);
+                }
+                return entry.store;
+            }
         }
-        return ds;
     }
 
-    public synchronized void releaseStore(DocStoreSession sess, String storeId, DocVersionId verId)
+    public void releaseStore(DocStoreSession sess, String storeId, DocVersionId verId)
     {
-        String[] arr = getConnectedUsers(storeId, verId);
-        if (arr.length == 0) deleteStore(storeId, verId);
+        String key = getStoreKey(storeId, verId);
+        Set<String> keys = openSessions.get(sess);
+        if (keys != null) {
+            keys.remove(key);
+        }
+        releaseEntry(sess, key);
     }
 
     /**
      * Has to be called from DocStoreSession, when store instance is no longer
      * valid, e.g. when version is renamed or deleted.
      */
-    public synchronized void destroyStoreInstance(String storeId, DocVersionId verId)
+    public void destroyStoreInstance(String storeId, DocVersionId verId)
     {
-        String[] arr = getConnectedUsers(storeId, verId);
-        if (arr.length > 0) {
-            throw new DocRuntimeException("Cannot destroy store instance. Users are still connected!");
+        String key = getStoreKey(storeId, verId);
+        StoreEntry entry = docStores.get(key);
+        if (entry != null) {
+            synchronized (entry) {
+                if (! entry.sessions.isEmpty()) {
+                    throw new DocRuntimeException("Cannot destroy store instance. Users are still connected!");
+                }
+                if (! entry.removed) {
+                    removeEntry(key, entry);
+                }
+            }
         }
-        deleteStore(storeId, verId);
+        uuidIndex.removeVersion(storeId, verId);
     }
 
     /**
      * Has to be called from DocStoreSession, when store instance is no longer
      * valid, e.g. when store is to be deleted or store-id is to be changed.
      */
-    public synchronized void destroyStoreInstances(String storeId)
+    public void destroyStoreInstances(String storeId)
     {
         String[] arr = getConnectedUsers(storeId);
         if (arr.length > 0) {
             throw new DocRuntimeException("Cannot destroy store instances. Users are still connected!");
         }
-        deleteStores(storeId);
+        for (Map.Entry<String, StoreEntry> e : docStores.entrySet()) {
+            StoreEntry entry = e.getValue();
+            if (entry.storeId.equals(storeId)) {
+                synchronized (entry) {
+                    if (! entry.sessions.isEmpty()) {
+                        throw new DocRuntimeException("Cannot destroy store instances. Users are still connected!");
+                    }
+                    if (! entry.removed) {
+                        removeEntry(e.getKey(), entry);
+                    }
+                }
+            }
+        }
+        uuidIndex.removeStore(storeId);
+        renditionCache.invalidate(storeId);
+    }
+
+    public void destroySession(DocStoreSession sess)
+    {
+        Set<String> keys = openSessions.remove(sess);
+        if (keys != null) {
+            // Release store instances that have not been released by the session
+            for (String key : keys) {
+                releaseEntry(sess, key);
+            }
+        }
+    }
+
+
+    /**
+     * Evicts idle store instances that have exceeded the idle timeout, and
+     * the least recently released idle instances, if the number of idle 
+     * instances exceeds the configured maximum. This method is called 
+     * whenever a store instance is released. It can also be called 
+     * periodically, e.g. by a maintenance thread.
+     */
+    public void evictIdleStores()
+    {
+        List<String> keys = new ArrayList<String>();
+        List<StoreEntry> entries = new ArrayList<StoreEntry>();
+        List<Long> idleTimes = new ArrayList<Long>();
+        long expired_time = System.currentTimeMillis() - storeCacheIdleTimeout;
+        synchronized (idleLock) {
+            int excess = idleStores.size() - storeCacheMaxIdle;
+            Iterator<Map.Entry<String, StoreEntry>> it = idleStores.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, StoreEntry> e = it.next();
+                StoreEntry entry = e.getValue();
+                long idle_since = entry.idleSince;
+                if ((excess <= 0) && (idle_since > expired_time)) {
+                    break;  // all following entries have been released later
+                }
+                it.remove();
+                --excess;
+                keys.add(e.getKey());
+                entries.add(entry);
+                idleTimes.add(idle_since);
+            }
+        }
+        // Entry monitors must not be acquired while holding idleLock
+        for (int i = 0; i < keys.size(); i++) {
+            evictEntry(keys.get(i), entries.get(i), idleTimes.get(i));
+        }
+    }
+
+    /**
+     * Returns the number of acquireStore() calls that have been served by an
+     * existing store instance (used or idle).
+     */
+    public long getStoreCacheHits()
+    {
+        return storeCacheHits.get();
     }
 
-    public synchronized void destroySession(DocStoreSession sess)
+    /**
+     * Returns the number of acquireStore() calls that required the creation 
+     * of a new store instance.
+     */
+    public long getStoreCacheMisses()
     {
-        openSessions.remove(sess);
+        return storeCacheMisses.get();
+    }
+
+    /**
+     * Returns the number of idle store instances that have been evicted.
+     */
+    public long getStoreCacheEvictions()
+    {
+        return storeCacheEvictions.get();
+    }
+
+    public int getStoreCacheIdleCount()
+    {
+        synchronized (idleLock) {
+            return idleStores.size();
+        }
     }
 
 
@@ -219,6 +411,170 @@ public abstract class AbstractDocStoreManager implements DocStoreManager
         this.verIdFactory = verIdFactory;
     }
 
+    public File getUUIDIndexFile()
+    {
+        return uuidIndex.getSnapshotFile();
+    }
+
+    /**
+     * Sets the file where the UUID index of all stores is saved. If the file
+     * exists, the index is initialized from the file, i.e. the stores 
+     * contained in the file do not have to be scanned. By default, no file
+     * is used.
+     */
+    public void setUUIDIndexFile(File snapshotFile)
+    {
+        uuidIndex.setSnapshotFile(snapshotFile);
+    }
+
+    /**
+     * Sets the maximum time in milliseconds a lookup of an unknown UUID
+     * waits for the background indexing of the stores.
+     */
+    public void setUUIDIndexWaitTimeout(long millis)
+    {
+        uuidIndex.setWaitTimeout(millis);
+    }
+
+    /**
+     * Writes the UUID index to the configured index file, e.g. before 
+     * the application is shut down.
+     */
+    public void saveUUIDIndex()
+    {
+        uuidIndex.saveSnapshot();
+    }
+
+    public int getStoreCacheMaxIdle()
+    {
+        return storeCacheMaxIdle;
+    }
+
+    /**
+     * Sets the maximum number of store instances that are kept in memory
+     * after the last session has released the instance. 
+     * The default value 0 disables caching of idle instances.
+     */
+    public void setStoreCacheMaxIdle(int maxIdle)
+    {
+        this.storeCacheMaxIdle = Math.max(0, maxIdle);
+        evictIdleStores();
+    }
+
+    public long getStoreCacheIdleTimeout()
+    {
+        return storeCacheIdleTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds after which an idle store instance
+     * is evicted from the cache.
+     */
+    public void setStoreCacheIdleTimeout(long millis)
+    {
+        this.storeCacheIdleTimeout = Math.max(0, millis);
+        evictIdleStores();
+    }
+
+    public boolean isAsyncEventDispatch()
+    {
+        return asyncEventDispatch;
+    }
+
+    /**
+     * Enables asynchronous dispatching of document events for store 
+     * instances that are created after this call. 
+     * See AbstractDocStore.setAsyncEventDispatch().
+     */
+    public void setAsyncEventDispatch(boolean async)
+    {
+        this.asyncEventDispatch = async;
+    }
+
+    public int getMaxPendingEvents()
+    {
+        return maxPendingEvents;
+    }
+
+    /**
+     * Sets the maximum number of events that are queued for a listener
+     * in asynchronous mode, before the events are coalesced.
+     * The value 0 means no limit.
+     */
+    public void setMaxPendingEvents(int maxPending)
+    {
+        this.maxPendingEvents = Math.max(0, maxPending);
+    }
+
+    public int getStructureChangeThreshold()
+    {
+        return structureChangeThreshold;
+    }
+
+    /**
+     * Sets the structure change threshold for store instances that are 
+     * created after this call. See AbstractDocStore.setStructureChangeThreshold().
+     */
+    public void setStructureChangeThreshold(int threshold)
+    {
+        this.structureChangeThreshold = Math.max(0, threshold);
+    }
+
+    public int getEventDispatchThreads()
+    {
+        synchronized (eventExecutorLock) {
+            return eventDispatchThreads;
+        }
+    }
+
+    /**
+     * Sets the number of threads that deliver the document events of this
+     * manager's store instances in asynchronous mode. Each manager has its
+     * own pool, i.e. listeners of other managers are not affected by slow 
+     * listeners of this manager. However, if as many listeners of this 
+     * manager are blocked as the pool has threads, the asynchronous delivery
+     * to all stores of this manager is stalled.
+     */
+    public void setEventDispatchThreads(int threads)
+    {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Number of event dispatch threads must be positive.");
+        }
+        synchronized (eventExecutorLock) {
+            eventDispatchThreads = threads;
+            if (eventExecutor != null) {
+                if (threads > eventExecutor.getMaximumPoolSize()) {
+                    eventExecutor.setMaximumPoolSize(threads);
+                    eventExecutor.setCorePoolSize(threads);
+                } else {
+                    eventExecutor.setCorePoolSize(threads);
+                    eventExecutor.setMaximumPoolSize(threads);
+                }
+            }
+        }
+    }
+
+    public RenditionPrewarmer getRenditionPrewarmer()
+    {
+        return renditionPrewarmer;
+    }
+
+    /**
+     * Enables the creation of image renditions in the background, when 
+     * image nodes are added or changed. The renditions are created in a 
+     * session of the given user. The value null disables the prewarming
+     * (default). Only store instances that are created after this call 
+     * are prewarmed.
+     */
+    public synchronized void setRenditionPrewarmUser(String userId)
+    {
+        if (renditionPrewarmer != null) {
+            renditionPrewarmer.shutdown();
+        }
+        renditionPrewarmer = (userId == null) ? null :
+            new RenditionPrewarmer(this, userId, RenditionPrewarmer.DEFAULT_DELAY);
+    }
+
 
     /* --------------  Abstract methods ------------------ */
 
@@ -229,10 +585,11 @@ public abstract class AbstractDocStoreManager implements DocStoreManager
 
     /* --------------  Interface DocStoreManager ------------------ */
 
-    public synchronized DocStoreSession connect(String userId) throws DocException {
-        String sessionId = Long.toString(++nextSessionId);
+    public DocStoreSession connect(String userId) throws DocException {
+        String sessionId = Long.toString(nextSessionId.incrementAndGet());
         DocStoreSession sess = createSessionInstance(sessionId, userId);
-        openSessions.add(sess);
+        Set<String> keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4));
+        openSessions.put(sess, keys);
         return sess;
     }
 
@@ -246,18 +603,54 @@ public abstract class AbstractDocStoreManager implements DocStoreManager
         return getConnectedUsers(storeId, null);
     }
 
-    public synchronized String[] getConnectedUsers(String storeId, DocVersionId verId)
+    public String[] getConnectedUsers(String storeId, DocVersionId verId)
     {
-        Set conn_users = new HashSet(openSessions.size());
-        for (int i=0; i < openSessions.size(); i++) {
-            DocStoreSession sess = (DocStoreSession) openSessions.get(i);
-            if (((storeId == null) || storeId.equals(sess.getStoreId())) &&
-                ((verId == null) || verId.equals(sess.getVersionId()))) {
-                conn_users.add(sess.getUserId());
+        Set<String> conn_users = new HashSet<String>();
+        if (storeId == null) {
+            for (DocStoreSession sess : openSessions.keySet()) {
+                if ((verId == null) || verId.equals(sess.getVersionId())) {
+                    conn_users.add(sess.getUserId());
+                }
+            }
+        } else if (verId != null) {
+            StoreEntry entry = docStores.get(getStoreKey(storeId, verId));
+            if (entry != null) {
+                addUserIds(entry, conn_users);
+            }
+        } else {
+            for (StoreEntry entry : docStores.values()) {
+                if (entry.storeId.equals(storeId)) {
+                    addUserIds(entry, conn_users);
+                }
             }
         }
         String[] uids = new String[conn_users.size()];
-        return (String[]) conn_users.toArray(uids);
+        return conn_users.toArray(uids);
+    }
+
+
+    /* --------------  Inner classes  ------------------ */
+
+    /**
+     * Map entry for a store version. The sessions map is the set of sessions
+     * that have acquired the store instance. Updates of the entry are
+     * synchronized on the entry itself.
+     */
+    private static class StoreEntry
+    {
+        final String storeId;
+        final DocVersionId verId;
+        final ConcurrentMap<DocStoreSession, Boolean> sessions = 
+            new ConcurrentHashMap<DocStoreSession, Boolean>(4);
+        AbstractDocStore store = null;
+        boolean removed = false;
+        volatile long idleSince = 0;  // time of release, if instance is cached as idle instance; 0 otherwise
+
+        StoreEntry(String storeId, DocVersionId verId)
+        {
+            this.storeId = storeId;
+            this.verId = verId;
+        }
     }
 
 }
@@ -43,9 +43,12 @@ public abstract class AbstractDocStoreSession implements DocStoreSession
     private String sessionId;
     private String userId;
     private String translationMode = null;
+    private boolean readOnlyTransaction = false;
+    // Stores whose properties have been written in the running transaction
+    private final Set<String> txChangedStores = new HashSet<String>();
 
-    protected List docListeners = new ArrayList();
-    protected List lockListeners = new ArrayList();
+    protected List<DocListener> docListeners = new ListenerRegistry<DocListener>();
+    protected List<LockListener> lockListeners = new ListenerRegistry<LockListener>();
 
     protected static final Set<String> internalStoreProps;
     protected static final Set<String> internalVersionProps;
@@ -85,6 +88,99 @@ public abstract class AbstractDocStoreSession implements DocStoreSession
     abstract protected void setTranslationBackToPending(String storeId, DocVersionId verId, String lang)
     throws DocException;
 
+    /* --------------  Protected methods ------------------ */
+
+    /* --------------  Private methods ------------------ */
+
+    /**
+     * Ends the uncommitted state of the stores whose properties have been
+     * written in the previous transaction. Has no effect while a 
+     * transaction is running.
+     */
+    private synchronized void checkTransactionEnded()
+    {
+        if (! (txChangedStores.isEmpty() || runningTransaction())) {
+            ImageRenditionCache cache = storeManager.getImageRenditionCache();
+            for (String store_id : txChangedStores) {
+                cache.endUncommitted(store_id);
+            }
+            txChangedStores.clear();
+        }
+    }
+
+    private ImageRenditionCache.Entry getImageRenditionDefs()
+    {
+        checkTransactionEnded();
+        String store_id = getStoreId();
+        ImageRenditionCache.Entry defs = null;
+        // Within a transaction, uncommitted changes of this session 
+        // have to be visible. Therefore the shared cache is not used.
+        if ((store_id != null) && !runningTransaction()) {
+            defs = storeManager.getImageRenditionCache().get(store_id);
+        }
+        if (defs == null) {
+            defs = loadImageRenditionDefs(store_id);
+        }
+        return defs;
+    }
+
+    private synchronized ImageRenditionCache.Entry loadImageRenditionDefs(String store_id)
+    {
+        ImageRenditionCache cache = storeManager.getImageRenditionCache();
+        long gen = cache.getGeneration();
+        DocImageRendition[] rend_arr = null;
+        
+        // Note: A read-only transaction is used, because filesystem-based 
+        //       stores write the index.xml file at every commit.
+        
+        boolean started = startLocalReadOnlyTransaction();
+        try {
+            String rend_ids = getDocStoreProperty(store_id, PROP_STORE_RENDITION_NAMES);
+            if ((rend_ids != null) && (rend_ids.trim().length() > 0)) {
+                String[] id_arr = rend_ids.split(",");
+                rend_arr = new DocImageRendition[id_arr.length];
+                for (int i=0; i < id_arr.length; i++) {
+                    rend_arr[i] = loadImageRendition(store_id, id_arr[i].trim());
+                }
+            } else {
+                rend_arr = new DocImageRendition[0];
+            }
+        } finally {
+            endLocalReadOnlyTransaction(started);
+        }
+        ImageRenditionCache.Entry defs = new ImageRenditionCache.Entry(rend_arr);
+        // Uncommitted changes must not be visible to other sessions
+        if ((store_id != null) && !runningTransaction()) {
+            cache.put(store_id, defs, gen);
+        }
+        return defs;
+    }
+
+    private DocImageRendition loadImageRendition(String store_id, String name)
+    {
+        DocImageRendition result = null;
+        String format = getDocStoreProperty(store_id, 
+                                            PROP_STORE_RENDITION_FORMAT + "." + name);
+        if ((format != null) && !format.trim().equals("")) {
+            String w_str = getDocStoreProperty(store_id, 
+                                               PROP_STORE_RENDITION_MAX_WIDTH + "." + name);
+            String h_str = getDocStoreProperty(store_id, 
+                                               PROP_STORE_RENDITION_MAX_HEIGHT + "." + name);
+            int max_width = 0;
+            int max_height = 0;
+            try {
+                max_width = Integer.parseInt(w_str);
+                max_height = Integer.parseInt(h_str);
+            } catch (Exception ex) {}
+            try {
+                result = new DocImageRendition(name, format, max_width, max_height);
+            } catch (DocException dex) {
+                throw new DocRuntimeException("Could not load image rendition: " + name);
+            }
+        }
+        return result;
+    }
+
     /* --------------  Public methods ------------------ */
 
     public static boolean isInternalStoreProperty(String propName)
@@ -154,12 +250,95 @@ public abstract class AbstractDocStoreSession implements DocStoreSession
     }
 
 
+    /**
+     * Called when a read-only transaction is started. Sub-classes can 
+     * override this method to read from a consistent snapshot of the store, 
+     * e.g. by starting a read-only database transaction. 
+     * The default implementation does nothing.
+     */
+    protected void onStartReadOnlyTransaction() throws DocException
+    {
+    }
+
+    /**
+     * Called when a read-only transaction is ended. Nothing is written 
+     * to the store. The default implementation does nothing.
+     */
+    protected void onEndReadOnlyTransaction()
+    {
+    }
+
+    /**
+     * Throws an exception if a read-only transaction is running. 
+     * Sub-classes should call this method at the beginning of 
+     * startTransaction(), to prevent that a read-write transaction is 
+     * started within a read-only transaction.
+     */
+    protected synchronized void checkStartTransaction() throws DocException
+    {
+        if (readOnlyTransaction) {
+            throw new DocException("Cannot start transaction: read-only transaction is running.");
+        }
+    }
+
+    public synchronized void startReadOnlyTransaction() throws DocException
+    {
+        checkTransactionEnded();
+        if (readOnlyTransaction || runningTransaction()) {
+            throw new DocException("Cannot start read-only transaction: transaction is already running.");
+        }
+        onStartReadOnlyTransaction();
+        readOnlyTransaction = true;
+    }
+
+    public synchronized void endReadOnlyTransaction()
+    {
+        if (readOnlyTransaction) {
+            readOnlyTransaction = false;
+            onEndReadOnlyTransaction();
+        }
+    }
+
+    public synchronized boolean runningReadOnlyTransaction()
+    {
+        return readOnlyTransaction;
+    }
+
+    public synchronized boolean startLocalReadOnlyTransaction()
+    {
+        // if no transaction is running, then start a "local" read-only 
+        // transaction; a running read-write transaction is also consistent
+        if (readOnlyTransaction || runningTransaction()) {
+            return false;
+        } else {
+            try {
+                startReadOnlyTransaction();
+                return true;
+            } catch (DocException dex) {
+                throw new DocRuntimeException(dex);
+            }
+        }
+    }
+
+    public void endLocalReadOnlyTransaction(boolean started)
+    {
+        if (started) endReadOnlyTransaction();
+    }
+
     public synchronized boolean startLocalTransaction()
     {
+        checkTransactionEnded();
         // if a transaction is not already running, then start
         // a "local" transaction
         if (runningTransaction()) {
             return false;
+        } else if (readOnlyTransaction) {
+            // Store implementations may write implicitly while reading, 
+            // e.g. to assign a missing UUID. Such writes must not cause 
+            // readers to fail. Therefore no local transaction is started,
+            // i.e. the write is executed without transaction.
+            Log.warning("Write operation within read-only transaction of session " + sessionId + ".");
+            return false;
         } else {
             try {
                 startTransaction();
@@ -235,21 +414,22 @@ public abstract class AbstractDocStoreSession implements DocStoreSession
     
     public void onOpenDocStore()
     {
-        for (int i=0; i < docListeners.size(); i++) {
-            docStore.addDocListener((DocListener) docListeners.get(i));
+        for (DocListener listener : ListenerRegistry.snapshotOf(docListeners)) {
+            docStore.addDocListener(listener);
         }
-        for (int i=0; i < lockListeners.size(); i++) {
-            docStore.getLockManager().addListener((LockListener) lockListeners.get(i));
+        for (LockListener listener : ListenerRegistry.snapshotOf(lockListeners)) {
+            docStore.getLockManager().addListener(listener);
         }
     }
     
     public void onCloseDocStore()
     {
-        for (int i=0; i < docListeners.size(); i++) {
-            docStore.removeDocListener((DocListener) docListeners.get(i));
+        checkTransactionEnded();
+        for (DocListener listener : ListenerRegistry.snapshotOf(docListeners)) {
+            docStore.removeDocListener(listener);
         }
-        for (int i=0; i < lockListeners.size(); i++) {
-            docStore.getLockManager().removeListener((LockListener) lockListeners.get(i));
+        for (LockListener listener : ListenerRegistry.snapshotOf(lockListeners)) {
+            docStore.getLockManager().removeListener(listener);
         }
     }
 
@@ -340,13 +520,11 @@ public abstract class AbstractDocStoreSession implements DocStoreSession
     {
         String st = null;
         
-        // Note: Transaction is commented out, because read-only operations
-        //       should not be executed in a transaction. This is because  
-        //       filesystem-based stores write the index.xml file at every commit.
-        //       Future solution is to introduce read-only transactions.
+        // Note: A read-only transaction is used, because filesystem-based 
+        //       stores write the index.xml file at every commit.
         
-        // boolean started = startLocalTransaction();
-        // try {
+        boolean started = startLocalReadOnlyTransaction();
+        try {
             if (lang == null) {
                 st = getVersionProperty(storeId, verId, PROP_VERSION_STATE);
             } else {
@@ -364,10 +542,9 @@ public abstract class AbstractDocStoreSession implements DocStoreSession
                     }
                 }
             }
-        //     commitLocalTransaction(started);
-        // } catch (Exception ex) {
-        //     rollbackLocalTransactionRuntime(started, ex);  // rollback and throw runtime exception
-        // }
+        } finally {
+            endLocalReadOnlyTransaction(started);
+        }
         return st;
     }
 
@@ -496,68 +673,62 @@ public abstract class AbstractDocStoreSession implements DocStoreSession
         }
     }
 
-    public synchronized DocImageRendition[] getImageRenditions()
-    {
-        DocImageRendition[] rend_arr = null;
-        
-        // Note: Transaction is commented out, because read-only operations
-        //       should not be executed in a transaction. This is because  
-        //       filesystem-based stores write the index.xml file at every commit.
-        //       Future solution is to introduce read-only transactions.
-        
-        // boolean started = startLocalTransaction();
-        // try {
-            String rend_ids = getDocStoreProperty(getStoreId(), PROP_STORE_RENDITION_NAMES);
-            if ((rend_ids != null) && (rend_ids.trim().length() > 0)) {
-                String[] id_arr = rend_ids.split(",");
-                rend_arr = new DocImageRendition[id_arr.length];
-                for (int i=0; i < id_arr.length; i++) {
-                    rend_arr[i] = getImageRendition(id_arr[i].trim());
-                }
+    /**
+     * Invalidates the cached image rendition definitions of the store,
+     * which are shared by all sessions of the store manager. Is called by
+     * addImageRendition() and deleteImageRendition(). Has to be called 
+     * if store properties are written by other means, e.g. by 
+     * setDocStoreProperties(). Sub-classes can call this method in their
+     * implementation of setDocStoreProperty() and setDocStoreProperties().
+     * <p>
+     * If a transaction is running, other sessions do not cache the 
+     * definitions of the store, until the end of the transaction has been 
+     * detected by this session, or onTransactionEnded() has been called.
+     * </p>
+     */
+    public synchronized void docStorePropertiesChanged(String storeId)
+    {
+        if (storeId != null) {
+            ImageRenditionCache cache = storeManager.getImageRenditionCache();
+            if (runningTransaction() && txChangedStores.add(storeId)) {
+                cache.beginUncommitted(storeId);
             } else {
-                rend_arr = new DocImageRendition[0];
+                cache.invalidate(storeId);
             }
-        //     commitLocalTransaction(started);
-        // } catch (Exception ex) {
-        //     rollbackLocalTransactionRuntime(started, ex);  // rollback and throw runtime exception
-        // }
-        return rend_arr;
+        }
     }
 
-    public synchronized DocImageRendition getImageRendition(String name)
+    /**
+     * Can be called by sub-classes after a transaction has been committed 
+     * or rolled back. Allows other sessions to cache the image rendition 
+     * definitions of stores that have been changed in the transaction.
+     * Otherwise the end of the transaction is detected with the next 
+     * access to the image renditions or the next transaction.
+     */
+    public void onTransactionEnded()
     {
-        DocImageRendition result = null;
-        // Note: Transaction is commented out, because read-only operations
-        //       should not be executed in a transaction. This is because  
-        //       filesystem-based stores write the index.xml file at every commit.
-        //       Future solution is to introduce read-only transactions.
-        
-        // boolean started = startLocalTransaction();
-        // try {
-            String format = getDocStoreProperty(getStoreId(), 
-                                                PROP_STORE_RENDITION_FORMAT + "." + name);
-            if ((format != null) && !format.trim().equals("")) {
-                String w_str = getDocStoreProperty(getStoreId(), 
-                                                   PROP_STORE_RENDITION_MAX_WIDTH + "." + name);
-                String h_str = getDocStoreProperty(getStoreId(), 
-                                                   PROP_STORE_RENDITION_MAX_HEIGHT + "." + name);
-                int max_width = 0;
-                int max_height = 0;
-                try {
-                    max_width = Integer.parseInt(w_str);
-                    max_height = Integer.parseInt(h_str);
-                } catch (Exception ex) {}
-                try {
-                    result = new DocImageRendition(name, format, max_width, max_height);
-                } catch (DocException dex) {
-                    throw new DocRuntimeException("Could not load image rendition: " + name);
-                }
+        checkTransactionEnded();
+    }
+
+    public DocImageRendition[] getImageRenditions()
+    {
+        return getImageRenditionDefs().getRenditions();
+    }
+
+    public DocImageRendition getImageRendition(String name)
+    {
+        DocImageRendition rend = getImageRenditionDefs().getRendition(name);
+        if (rend == null) {
+            // Renditions that are not listed in PROP_STORE_RENDITION_NAMES
+            // are read directly from the properties (as before caching).
+            boolean started = startLocalReadOnlyTransaction();
+            try {
+                rend = loadImageRendition(getStoreId(), name);
+            } finally {
+                endLocalReadOnlyTransaction(started);
             }
-        //     commitLocalTransaction(started);
-        // } catch (Exception ex) {
-        //     rollbackLocalTransactionRuntime(started, ex);  // rollback and throw runtime exception
-        // }
-        return result;
+        }
+        return rend;
     }
 
     public synchronized void addImageRendition(DocImageRendition rendition) throws DocException
@@ -593,6 +764,7 @@ public abstract class AbstractDocStoreSession implements DocStoreSession
                     "" + rendition.getMaxWidth(),
                     "" + rendition.getMaxHeight() };
                 setDocStoreProperties(getStoreId(), prop_names, prop_values);
+                docStorePropertiesChanged(getStoreId());
             } else {
                 throw new DocException("Rendition already exists: " + rendition.getName());
             }
@@ -626,6 +798,7 @@ public abstract class AbstractDocStoreSession implements DocStoreSession
                         PROP_STORE_RENDITION_MAX_HEIGHT + "." + renditionName };
                     String[] prop_values = new String[] { name_str, null, null, null };
                     setDocStoreProperties(getStoreId(), prop_names, prop_values);
+                    docStorePropertiesChanged(getStoreId());
                     delete_okay = true;
                 }
             }
@@ -726,8 +899,7 @@ public abstract class AbstractDocStoreSession implements DocStoreSession
 
     public DocListener[] getDocListeners() 
     {
-        DocListener[] arr = new DocListener[docListeners.size()];
-        return (DocListener[]) docListeners.toArray(arr);
+        return docListeners.toArray(new DocListener[0]);
     }
 
     public void addLockListener(LockListener listener) 
@@ -744,8 +916,7 @@ public abstract class AbstractDocStoreSession implements DocStoreSession
 
     public LockListener[] getLockListeners() 
     {
-        LockListener[] arr = new LockListener[lockListeners.size()];
-        return (LockListener[]) lockListeners.toArray(arr);
+        return lockListeners.toArray(new LockListener[0]);
     }
 
 
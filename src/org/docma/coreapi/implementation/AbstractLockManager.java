@@ -25,7 +25,7 @@ import org.docma.util.Log;
  */
 public abstract class AbstractLockManager implements LockManager
 {
-    protected List listeners = new ArrayList();
+    protected List<LockListener> listeners = new ListenerRegistry<LockListener>();
 
     /* --------------  Protected methods  --------------- */
 
@@ -42,9 +42,9 @@ public abstract class AbstractLockManager implements LockManager
     protected void lockAddedEvent(Lock lock)
     {
         // LockEventDispatcher.dispatch(lock, listeners, LockEventThread.EVENT_ADDED);
-        for (int i=0; i < listeners.size(); i++) {
+        for (LockListener listener : ListenerRegistry.snapshotOf(listeners)) {
             try {
-                ((LockListener) listeners.get(i)).lockAdded(lock);
+                listener.lockAdded(lock);
             } catch (Exception ex) {
                 Log.warning("LockListener exception in lockAdded method: " + ex.getMessage());
             }
@@ -54,9 +54,9 @@ public abstract class AbstractLockManager implements LockManager
     protected void lockRemovedEvent(Lock lock)
     {
         // LockEventDispatcher.dispatch(lock, listeners, LockEventThread.EVENT_REMOVED);
-        for (int i = 0; i < listeners.size(); i++) {
+        for (LockListener listener : ListenerRegistry.snapshotOf(listeners)) {
             try {
-                ((LockListener) listeners.get(i)).lockRemoved(lock);
+                listener.lockRemoved(lock);
             } catch (Exception ex) {
                 Log.warning("LockListener exception in lockRemoved method: " + ex.getMessage());
             }
@@ -66,9 +66,9 @@ public abstract class AbstractLockManager implements LockManager
     protected void lockTimeoutEvent(Lock lock)
     {
         // LockEventDispatcher.dispatch(lock, listeners, LockEventThread.EVENT_TIMEOUT);
-        for (int i = 0; i < listeners.size(); i++) {
+        for (LockListener listener : ListenerRegistry.snapshotOf(listeners)) {
             try {
-                ((LockListener) listeners.get(i)).lockTimeout(lock);
+                listener.lockTimeout(lock);
             } catch (Exception ex) {
                 Log.warning("LockListener exception in lockTimeout method: " + ex.getMessage());
             }
@@ -80,25 +80,17 @@ public abstract class AbstractLockManager implements LockManager
 
     public void addListener(LockListener listener)
     {
-        removeListener(listener);
         listeners.add(listener);
     }
 
     public boolean removeListener(LockListener listener)
     {
-        for (int i=0; i < listeners.size(); i++) {
-            if (listeners.get(i) == listener) {
-                listeners.remove(i);
-                return true;
-            }
-        }
-        return false;
+        return listeners.remove(listener);
     }
 
     public LockListener[] getListeners()
     {
-        LockListener[] arr = new LockListener[listeners.size()];
-        return (LockListener[]) listeners.toArray(arr);
+        return listeners.toArray(new LockListener[0]);
     }
 
 
@@ -0,0 +1,329 @@
+/*
+ * AsyncDocEventDispatcher.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi.implementation;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.docma.coreapi.*;
+import org.docma.util.Log;
+
+/**
+ * Delivers the events of one store instance asynchronously.
+ * Each listener has its own queue of pending events, which is processed
+ * by a pool of dispatcher threads. The pool is either owned by the
+ * dispatcher or supplied by the caller, e.g. one pool per store manager.
+ * The events of one listener are delivered in order. A listener that
+ * occupies a thread does not delay the delivery to other listeners, as
+ * long as the pool has free threads. Note that if as many listeners are
+ * blocked as the pool has threads, the delivery to all listeners that
+ * share the pool is stalled. If the number of pending events of a listener
+ * exceeds the configured maximum, the pending events are replaced by a
+ * single NODES_STRUCTURE_CHANGED event.
+ *
+ * @author MP
+ */
+class AsyncDocEventDispatcher
+{
+    static final int DEFAULT_POOL_SIZE =
+        Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final Executor executor;
+    private final Map<DocListener, ListenerQueue> queues = new IdentityHashMap<DocListener, ListenerQueue>();
+    private volatile int maxPendingEvents;
+
+    private final AtomicLong dispatchedEvents = new AtomicLong(0);
+    private final AtomicLong coalescedEvents = new AtomicLong(0);
+    private final AtomicLong overflowCount = new AtomicLong(0);
+    private final AtomicLong listenerErrors = new AtomicLong(0);
+    private final AtomicInteger maxPendingSeen = new AtomicInteger(0);
+
+
+    /**
+     * Creates a dispatcher with its own pool of DEFAULT_POOL_SIZE threads.
+     */
+    AsyncDocEventDispatcher(int maxPendingEvents)
+    {
+        this(maxPendingEvents, createExecutor(DEFAULT_POOL_SIZE));
+    }
+
+    /**
+     * Creates a dispatcher that delivers the events with the given executor.
+     */
+    AsyncDocEventDispatcher(int maxPendingEvents, Executor executor)
+    {
+        this.maxPendingEvents = maxPendingEvents;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a pool of daemon threads for event dispatching. Idle threads
+     * are terminated, i.e. an unused pool does not hold any threads.
+     */
+    static ThreadPoolExecutor createExecutor(int threads)
+    {
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 
+            60, TimeUnit.SECONDS, 
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "docma-event-dispatch-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /* --------------  Package local methods  ---------------------- */
+
+    /**
+     * Adds the given events to the queues of the given listeners.
+     * The given listeners have to be all listeners that are registered 
+     * for the store. Queues of other listeners are discarded, e.g. of 
+     * listeners that have been removed without calling removeListener().
+     * The events have to be compressed already. The list is not modified.
+     */
+    void dispatch(DocListener[] listeners, List<?> events)
+    {
+        if (events.isEmpty()) {
+            return;
+        }
+        List<ListenerQueue> removed = null;
+        ListenerQueue[] targets = new ListenerQueue[listeners.length];
+        synchronized (queues) {
+            if (! queues.isEmpty()) {
+                Map<DocListener, Boolean> registered = new IdentityHashMap<DocListener, Boolean>();
+                for (DocListener listener : listeners) {
+                    registered.put(listener, Boolean.TRUE);
+                }
+                Iterator<Map.Entry<DocListener, ListenerQueue>> it = queues.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<DocListener, ListenerQueue> entry = it.next();
+                    if (! registered.containsKey(entry.getKey())) {
+                        if (removed == null) {
+                            removed = new ArrayList<ListenerQueue>();
+                        }
+                        removed.add(entry.getValue());
+                        it.remove();
+                    }
+                }
+            }
+            for (int i = 0; i < listeners.length; i++) {
+                ListenerQueue lq = queues.get(listeners[i]);
+                if (lq == null) {
+                    lq = new ListenerQueue(listeners[i]);
+                    queues.put(listeners[i], lq);
+                }
+                targets[i] = lq;
+            }
+        }
+        if (removed != null) {
+            for (ListenerQueue lq : removed) {
+                lq.close();
+            }
+        }
+        for (ListenerQueue lq : targets) {
+            lq.offer(events);
+        }
+    }
+
+    /**
+     * Discards the pending events of the given listener.
+     * Called when the listener is removed from the store.
+     */
+    void removeListener(DocListener listener)
+    {
+        ListenerQueue lq;
+        synchronized (queues) {
+            lq = queues.remove(listener);
+        }
+        if (lq != null) {
+            lq.close();
+        }
+    }
+
+    int getMaxPendingEvents()
+    {
+        return maxPendingEvents;
+    }
+
+    void setMaxPendingEvents(int maxPending)
+    {
+        this.maxPendingEvents = maxPending;
+    }
+
+    int getPendingEventCount()
+    {
+        int cnt = 0;
+        synchronized (queues) {
+            for (ListenerQueue lq : queues.values()) {
+                cnt += lq.size();
+            }
+        }
+        return cnt;
+    }
+
+    long getDispatchedEventCount()
+    {
+        return dispatchedEvents.get();
+    }
+
+    long getCoalescedEventCount()
+    {
+        return coalescedEvents.get();
+    }
+
+    long getOverflowCount()
+    {
+        return overflowCount.get();
+    }
+
+    long getListenerErrorCount()
+    {
+        return listenerErrors.get();
+    }
+
+    int getMaxPendingSeen()
+    {
+        return maxPendingSeen.get();
+    }
+
+    /* --------------  Private methods  ---------------------- */
+
+    private void updateMaxPending(int cnt)
+    {
+        int max = maxPendingSeen.get();
+        while ((cnt > max) && !maxPendingSeen.compareAndSet(max, cnt)) {
+            max = maxPendingSeen.get();
+        }
+    }
+
+    /* --------------  Inner classes  ---------------------- */
+
+    private class ListenerQueue implements Runnable
+    {
+        private final DocListener listener;
+        private final List<Object> pending = new ArrayList<Object>();
+        private boolean scheduled = false;
+        private boolean overflow = false;
+        private boolean closed = false;
+
+        ListenerQueue(DocListener listener)
+        {
+            this.listener = listener;
+        }
+
+        synchronized int size()
+        {
+            return pending.size();
+        }
+
+        void offer(List<?> events)
+        {
+            boolean schedule = false;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (overflow) {
+                    // The pending structure-changed event covers all changes.
+                    coalescedEvents.addAndGet(events.size());
+                } else {
+                    pending.addAll(events);
+                    int max = maxPendingEvents;
+                    if ((max > 0) && (pending.size() > max)) {
+                        // Listener cannot keep up: coalesce all pending events.
+                        coalescedEvents.addAndGet(pending.size() - 1);
+                        overflowCount.incrementAndGet();
+                        pending.clear();
+                        pending.add(EventQueueUtil.createStructureChangedEvent());
+                        overflow = true;
+                    }
+                    updateMaxPending(pending.size());
+                }
+                if (! scheduled) {
+                    scheduled = true;
+                    schedule = true;
+                }
+            }
+            if (schedule) {
+                execute();
+            }
+        }
+
+        synchronized void close()
+        {
+            closed = true;
+            pending.clear();
+        }
+
+        private void execute()
+        {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                Log.warning("Could not dispatch document events: " + ex.getMessage());
+                synchronized (this) {
+                    scheduled = false;
+                }
+            }
+        }
+
+        public void run()
+        {
+            List<Object> batch;
+            synchronized (this) {
+                if (closed || pending.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+                batch = new ArrayList<Object>(pending);
+                pending.clear();
+                overflow = false;
+            }
+            try {
+                for (Object evt : batch) {
+                    try {
+                        listener.event((DocEvent) evt);
+                    } catch (Exception ex) {
+                        listenerErrors.incrementAndGet();
+                        Log.warning("DocListener exception in method event(): " + ex.getMessage());
+                    }
+                }
+                dispatchedEvents.addAndGet(batch.size());
+            } finally {
+                // Re-schedule instead of looping, to give the queues of other
+                // listeners a chance to be processed by the pool threads.
+                // Is also done if the listener has thrown an Error, 
+                // otherwise the queue would never be processed again.
+                boolean more;
+                synchronized (this) {
+                    more = !(closed || pending.isEmpty());
+                    if (! more) {
+                        scheduled = false;
+                    }
+                }
+                if (more) {
+                    execute();
+                }
+            }
+        }
+    }
+}
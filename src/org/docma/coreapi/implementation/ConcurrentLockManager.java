@@ -0,0 +1,346 @@
+/*
+ * ConcurrentLockManager.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi.implementation;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.docma.lockapi.*;
+import org.docma.util.Log;
+
+/**
+ * Lock manager that keeps the locks in memory.
+ * Locks are stored in a concurrent hash map, i.e. setting, reading and
+ * removing a lock does not block other threads. Locks with a timeout are
+ * additionally registered in a hashed timing wheel. The wheel is advanced
+ * by a shared timer thread, which removes expired locks and fires the
+ * lockTimeout event, even if the lock is not accessed anymore.
+ * An expired lock that is accessed before the timer has removed it, is
+ * removed by the accessing thread.
+ *
+ * @author MP
+ */
+public class ConcurrentLockManager extends AbstractLockManager
+{
+    public static final long DEFAULT_TICK_DURATION = 1000;  // milliseconds
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static ScheduledExecutorService timer = null;
+
+    private final ConcurrentMap<LockKey, LockImpl> locks = new ConcurrentHashMap<LockKey, LockImpl>();
+
+    // Hashed timing wheel
+    private final long tickDuration;
+    private final ConcurrentLinkedQueue<WheelEntry>[] wheel;
+    private final long wheelStart;
+    private volatile long processedTick;
+    private final AtomicInteger wheelCount = new AtomicInteger(0);
+    private ScheduledFuture<?> tickTask = null;
+    private boolean closed = false;
+
+
+    public ConcurrentLockManager()
+    {
+        this(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Creates a lock manager with the given timing wheel configuration.
+     * Locks expire at most one tick after the lock timeout.
+     *
+     * @param tickDuration  the duration of one tick in milliseconds
+     * @param wheelSize  the number of slots of the timing wheel
+     */
+    public ConcurrentLockManager(long tickDuration, int wheelSize)
+    {
+        if ((tickDuration <= 0) || (wheelSize <= 0)) {
+            throw new IllegalArgumentException("Invalid timing wheel configuration.");
+        }
+        this.tickDuration = tickDuration;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentLinkedQueue<WheelEntry>[] slots = new ConcurrentLinkedQueue[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            slots[i] = new ConcurrentLinkedQueue<WheelEntry>();
+        }
+        this.wheel = slots;
+        this.wheelStart = System.currentTimeMillis();
+        this.processedTick = 0;
+    }
+
+    /* --------------  Public methods  --------------- */
+
+    /**
+     * Stops the expiration of locks by the timer thread.
+     * Has to be called when the lock manager is no longer used.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        if (tickTask != null) {
+            tickTask.cancel(false);
+            tickTask = null;
+        }
+        for (ConcurrentLinkedQueue<WheelEntry> slot : wheel) {
+            slot.clear();
+        }
+        wheelCount.set(0);
+    }
+
+    /**
+     * Returns the number of locks (including expired locks that have not
+     * been removed yet).
+     */
+    public int getLockCount()
+    {
+        return locks.size();
+    }
+
+    /**
+     * Removes all expired locks. Normally expired locks are removed by the
+     * timer thread. This method can be used to force the expiration.
+     */
+    public void expireLocks()
+    {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<LockKey, LockImpl> e : locks.entrySet()) {
+            LockImpl lock = e.getValue();
+            if (checkLockTimeout(now, lock)) {
+                expire(e.getKey(), lock);
+            }
+        }
+    }
+
+    /* --------------  Interface LockManager  --------------- */
+
+    public boolean setLock(String objId, String lockname, String user, long timeout)
+    {
+        LockKey key = new LockKey(objId, lockname);
+        while (true) {
+            long now = System.currentTimeMillis();
+            LockImpl lock = new LockImpl(objId, lockname, user, now, timeout);
+            LockImpl existing = locks.putIfAbsent(key, lock);
+            if (existing == null) {
+                schedule(key, lock);
+                lockAddedEvent(lock);
+                return true;
+            }
+            if (checkLockTimeout(now, existing)) {
+                expire(key, existing);
+                continue;   // retry
+            }
+            if ((user == null) || !user.equals(existing.getUser())) {
+                return false;   // locked by other user
+            }
+            if (locks.replace(key, existing, lock)) {
+                schedule(key, lock);
+                lockAddedEvent(lock);
+                return true;
+            }
+            // Lock has been changed concurrently; retry
+        }
+    }
+
+    public boolean refreshLock(String objId, String lockname, long timeout)
+    {
+        LockKey key = new LockKey(objId, lockname);
+        while (true) {
+            LockImpl existing = locks.get(key);
+            if (existing == null) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (checkLockTimeout(now, existing)) {
+                expire(key, existing);
+                return false;
+            }
+            LockImpl lock = new LockImpl(objId, lockname, existing.getUser(), now, timeout);
+            if (locks.replace(key, existing, lock)) {
+                // The wheel entry of the replaced lock becomes stale.
+                schedule(key, lock);
+                return true;
+            }
+        }
+    }
+
+    public Lock getLock(String objId, String lockname)
+    {
+        LockKey key = new LockKey(objId, lockname);
+        LockImpl lock = locks.get(key);
+        if ((lock != null) && checkLockTimeout(System.currentTimeMillis(), lock)) {
+            expire(key, lock);
+            return null;
+        }
+        return lock;
+    }
+
+    public Lock removeLock(String objId, String lockname)
+    {
+        LockKey key = new LockKey(objId, lockname);
+        LockImpl lock = locks.remove(key);
+        if (lock != null) {
+            if (checkLockTimeout(System.currentTimeMillis(), lock)) {
+                lockTimeoutEvent(lock);
+                return null;
+            }
+            lockRemovedEvent(lock);
+        }
+        return lock;
+    }
+
+    /* --------------  Private methods  --------------- */
+
+    private static synchronized ScheduledExecutorService getTimer()
+    {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "docma-lock-timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return timer;
+    }
+
+    private void expire(LockKey key, LockImpl lock)
+    {
+        // Only the thread that removes the lock fires the event.
+        if (locks.remove(key, lock)) {
+            lockTimeoutEvent(lock);
+        }
+    }
+
+    private long getTick(long time)
+    {
+        return (time - wheelStart) / tickDuration;
+    }
+
+    private void schedule(LockKey key, LockImpl lock)
+    {
+        if (lock.getTimeout() <= 0) {
+            return;  // lock does not expire
+        }
+        long deadline = lock.getCreationTime() + lock.getTimeout();
+        // Round up, so that the lock is expired when the slot is processed
+        long tick = Math.max(getTick(deadline) + 1, processedTick + 1);
+        wheel[(int) (tick % wheel.length)].add(new WheelEntry(key, lock, deadline));
+        if (wheelCount.incrementAndGet() == 1) {
+            startTimer();
+        }
+    }
+
+    private synchronized void startTimer()
+    {
+        if ((tickTask != null) || closed) {
+            return;
+        }
+        processedTick = Math.max(processedTick, getTick(System.currentTimeMillis()) - 1);
+        tickTask = getTimer().scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    advanceWheel();
+                } catch (Throwable ex) {
+                    Log.warning("Error in lock timeout processing: " + ex.getMessage());
+                }
+            }
+        }, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopTimerIfIdle()
+    {
+        if ((wheelCount.get() == 0) && (tickTask != null)) {
+            tickTask.cancel(false);
+            tickTask = null;
+        }
+    }
+
+    private void advanceWheel()
+    {
+        long now = System.currentTimeMillis();
+        long currentTick = getTick(now);
+        while (processedTick < currentTick) {
+            long tick = processedTick + 1;
+            Iterator<WheelEntry> it = wheel[(int) (tick % wheel.length)].iterator();
+            while (it.hasNext()) {
+                WheelEntry entry = it.next();
+                if (locks.get(entry.key) != entry.lock) {
+                    // Lock has been removed or replaced
+                    it.remove();
+                    wheelCount.decrementAndGet();
+                } else if (entry.deadline < now) {
+                    it.remove();
+                    wheelCount.decrementAndGet();
+                    expire(entry.key, entry.lock);
+                }
+                // else: deadline is in one of the next rounds of the wheel
+            }
+            processedTick = tick;
+        }
+        if (wheelCount.get() == 0) {
+            stopTimerIfIdle();
+            if (wheelCount.get() > 0) {
+                startTimer();   // lock has been added concurrently
+            }
+        }
+    }
+
+    /* --------------  Inner classes  --------------- */
+
+    private static class LockKey
+    {
+        private final String objId;
+        private final String name;
+        private final int hash;
+
+        LockKey(String objId, String name)
+        {
+            this.objId = objId;
+            this.name = name;
+            this.hash = 31 * ((objId == null) ? 0 : objId.hashCode()) +
+                        ((name == null) ? 0 : name.hashCode());
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (! (obj instanceof LockKey)) {
+                return false;
+            }
+            LockKey other = (LockKey) obj;
+            return ((objId == null) ? (other.objId == null) : objId.equals(other.objId)) &&
+                   ((name == null) ? (other.name == null) : name.equals(other.name));
+        }
+    }
+
+    private static class WheelEntry
+    {
+        final LockKey key;
+        final LockImpl lock;
+        final long deadline;
+
+        WheelEntry(LockKey key, LockImpl lock, long deadline)
+        {
+            this.key = key;
+            this.lock = lock;
+            this.deadline = deadline;
+        }
+    }
+}
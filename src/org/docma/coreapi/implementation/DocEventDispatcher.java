@@ -29,19 +29,26 @@ public class DocEventDispatcher implements Runnable
 
     private List listeners;
     private List eventQueue;
+    private int structureChangeThreshold;
 
 
     public DocEventDispatcher(List listeners, List evtQueue)
+    {
+        this(listeners, evtQueue, EventQueueUtil.DEFAULT_STRUCTURE_CHANGE_THRESHOLD);
+    }
+
+    public DocEventDispatcher(List<?> listeners, List<?> evtQueue, int structureChangeThreshold)
     {
         this.listeners = listeners;
         this.eventQueue = evtQueue;
+        this.structureChangeThreshold = structureChangeThreshold;
     }
 
     /* --------------  Public methods ---------------------- */
 
     public void run()
     {
-        EventQueueUtil.compressEvents(eventQueue);
+        EventQueueUtil.compressEvents(eventQueue, structureChangeThreshold);
         if (org.docma.coreapi.DocConstants.DEBUG) {
             EventQueueUtil.printEventQueue(eventQueue);
         }
@@ -24,31 +24,78 @@ import java.util.*;
 public class EventQueueUtil
 {
 
-    public static void compressEvents(List eventQueue)
+    /**
+     * Default value of the structure change threshold, i.e. the maximum 
+     * number of events in an event queue. If the number of queued events 
+     * exceeds the threshold, the events are replaced by a single 
+     * NODES_STRUCTURE_CHANGED event, i.e. the listeners have to reload the
+     * complete tree. The threshold is configured per store instance, see
+     * AbstractDocStore.setStructureChangeThreshold().
+     */
+    public static final int DEFAULT_STRUCTURE_CHANGE_THRESHOLD = 10000;
+
+
+    /**
+     * Returns true if the given number of queued events exceeds the 
+     * given structure change threshold. The threshold 0 means no limit.
+     */
+    public static boolean exceedsStructureChangeThreshold(int eventCount, int threshold)
     {
-        // Collections.sort(eventQueue);
-        int i = eventQueue.size() - 2;
-        while (i >= 0) {
-            Object evt_obj = eventQueue.get(i);
-            Object nextevt_obj = eventQueue.get(i + 1);
+        return (threshold > 0) && (eventCount > threshold);
+    }
 
-            if (isMergeable(evt_obj, nextevt_obj)) {
+    public static DocEvent createStructureChangedEvent()
+    {
+        return new DocEventImpl(DocEvent.NODES_STRUCTURE_CHANGED, null, null, null);
+    }
 
-                DocEventImpl evt = (DocEventImpl) evt_obj;
-                DocEventImpl nextevt = (DocEventImpl) nextevt_obj;
+    public static void compressEvents(List eventQueue)
+    {
+        compressEvents(eventQueue, DEFAULT_STRUCTURE_CHANGE_THRESHOLD);
+    }
 
-                nextevt.addNodeIds(evt.getNodeIds());
-                eventQueue.set(i, nextevt);
-                eventQueue.remove(i + 1);
+    public static void compressEvents(List<?> eventQueue, int structureChangeThreshold)
+    {
+        @SuppressWarnings("unchecked")
+        List<Object> queue = (List<Object>) eventQueue;
+        if (exceedsStructureChangeThreshold(queue.size(), structureChangeThreshold)) {
+            replaceDocEvents(queue);
+            return;
+        }
+        
+        // Merge consecutive events with same name, parent and language in 
+        // a single pass. Merging stops at any other event. 
+        // Otherwise the order of additions and removals would be changed, 
+        // e.g. if a node is moved from one parent to another.
+        List<Object> result = new ArrayList<Object>(queue.size());
+        DocEventImpl last = null;
+        EventKey last_key = null;
+        for (Object evt_obj : queue) {
+            if (! isMergeable(evt_obj)) {
+                result.add(evt_obj);
+                last_key = null;
+                continue;
+            }
+            DocEventImpl evt = (DocEventImpl) evt_obj;
+            EventKey key = new EventKey(evt);
+            if (key.equals(last_key)) {
+                last.addNodeIds(evt.getNodeIds());
+            } else {
+                result.add(evt);
+                last = evt;
+                last_key = key;
             }
-            i--;
+        }
+        if (result.size() < queue.size()) {
+            queue.clear();
+            queue.addAll(result);
         }
         
         // Following is a workaround for the ZK tree rendering bug in version 6.5.7.
         // This can be removed as soon as the bug is fixed.
         int cnt_changed = 0;
         boolean requires_restructure = false;
-        for (Object evt_obj : eventQueue) {
+        for (Object evt_obj : queue) {
             if (evt_obj instanceof DocEvent) {
                 String evt_name = ((DocEvent) evt_obj).getEventName();
                 if (DocEvent.NODES_CHANGED.equals(evt_name)) {
@@ -61,37 +108,29 @@ public class EventQueueUtil
             }
         }
         if (requires_restructure) {
-            for (int pos = eventQueue.size() - 1; pos >= 0; pos--) {
-                Object evt_obj = eventQueue.get(pos);
-                if (evt_obj instanceof DocEvent) {
-                    eventQueue.remove(pos);
-                }
-            }
-            eventQueue.add(new DocEventImpl(DocEvent.NODES_STRUCTURE_CHANGED, null, null, null));
+            replaceDocEvents(queue);
         }
     }
 
 
-    private static boolean isMergeable(Object event1, Object event2)
+    private static void replaceDocEvents(List<Object> eventQueue)
     {
-        if ((event1 instanceof DocEvent) && (event2 instanceof DocEvent)) {
-            DocEvent evt = (DocEvent) event1;
-            DocEvent nextevt = (DocEvent) event2;
-            String pId = evt.getParentId();
-            String nextpId = nextevt.getParentId();
-            if ((pId != null) && (nextpId != null)) {
-                if (pId.equals(nextpId) &&
-                    evt.getEventName().equals(nextevt.getEventName())) {
-                    String lg = evt.getLang();
-                    String nextlg = nextevt.getLang();
-                    if (((lg == null) && (nextlg == null)) ||
-                        ((lg != null) && lg.equals(nextlg))) {
-                        return true;
-                    }
-                }
+        List<Object> result = new ArrayList<Object>();
+        for (Object evt_obj : eventQueue) {
+            if (! (evt_obj instanceof DocEvent)) {
+                result.add(evt_obj);
             }
         }
-        return false;
+        result.add(createStructureChangedEvent());
+        eventQueue.clear();
+        eventQueue.addAll(result);
+    }
+
+    private static boolean isMergeable(Object event)
+    {
+        return (event instanceof DocEventImpl) && 
+               (((DocEvent) event).getParentId() != null) &&
+               (((DocEvent) event).getEventName() != null);
     }
 
 
@@ -105,4 +144,41 @@ public class EventQueueUtil
         }
     }
 
+    /* --------------  Inner classes  ---------------------- */
+
+    private static class EventKey
+    {
+        private final String eventName;
+        private final String parentId;
+        private final String lang;
+        private final int hash;
+
+        EventKey(DocEvent evt)
+        {
+            this.eventName = evt.getEventName();
+            this.parentId = evt.getParentId();
+            this.lang = evt.getLang();
+            int h = eventName.hashCode();
+            h = 31*h + parentId.hashCode();
+            h = 31*h + ((lang == null) ? 0 : lang.hashCode());
+            this.hash = h;
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (! (obj instanceof EventKey)) {
+                return false;
+            }
+            EventKey other = (EventKey) obj;
+            return eventName.equals(other.eventName) && 
+                   parentId.equals(other.parentId) &&
+                   ((lang == null) ? (other.lang == null) : lang.equals(other.lang));
+        }
+    }
+
 }
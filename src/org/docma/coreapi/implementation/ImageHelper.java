@@ -18,7 +18,13 @@ import java.io.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.awt.image.renderable.ParameterBlock;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.media.jai.*;
 
 import org.docma.coreapi.*;
@@ -29,22 +35,227 @@ import org.docma.coreapi.*;
  */
 public class ImageHelper
 {
+    private static final int MAX_HASH_ENTRIES = 1000;
 
+    private static volatile RenditionFileCache renditionCache = null;
+
+    // Content hashes of image files, by absolute path (LRU order)
+    private static final Map<String, FileHash> fileHashes = 
+        new LinkedHashMap<String, FileHash>(64, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, FileHash> eldest) {
+                return size() > MAX_HASH_ENTRIES;
+            }
+        };
+
+
+    public static RenditionFileCache getRenditionCache()
+    {
+        return renditionCache;
+    }
+
+    /**
+     * Sets the disk cache that is used by getRendition(). 
+     * If null (default), renditions are not cached.
+     */
+    public static void setRenditionCache(RenditionFileCache cache)
+    {
+        renditionCache = cache;
+    }
+
+    /**
+     * Returns the rendition of the given image file. The rendition is 
+     * read from the rendition cache, if available. Otherwise the rendition 
+     * is created by the default rendition engine and added to the cache.
+     * The content hash of the file is computed once and then reused as 
+     * long as the length and the modification time of the file are 
+     * unchanged.
+     */
+    public static byte[] getRendition(File image, DocImageRendition rendition) throws DocException
+    {
+        return getRendition(image, null, rendition);
+    }
+
+    /**
+     * Same as {@link #getRendition(File, DocImageRendition)}, but uses
+     * the given content hash, e.g. a hash that has been stored with the 
+     * image. If <code>contentHash</code> is null, the hash is computed.
+     */
+    public static byte[] getRendition(final File image, String contentHash, 
+                                      DocImageRendition rendition) throws DocException
+    {
+        if (renditionCache == null) {
+            // No hash required; the engine identifies the file by path, 
+            // length and modification time
+            return RenditionEngine.getDefault().createRendition((String) null, image, rendition);
+        }
+        if (contentHash == null) {
+            try {
+                contentHash = getContentHash(image);
+            } catch (IOException ex) {
+                throw new DocException(ex);
+            }
+        }
+        return getRendition(contentHash, new RenditionEngine.ImageSource() {
+            public InputStream openStream() throws IOException {
+                return new BufferedInputStream(new FileInputStream(image));
+            }
+        }, rendition);
+    }
+
+    /**
+     * Returns the rendition of the given image. The rendition is 
+     * read from the rendition cache, if available. Otherwise the rendition 
+     * is created by the default rendition engine and added to the cache.
+     *
+     * @param contentHash  the hash of the image content, see
+     *                     RenditionFileCache.computeContentHash()
+     * @param image  provides the content of the image
+     * @param rendition  the rendition definition
+     * @return  the encoded rendition
+     */
+    public static byte[] getRendition(String contentHash, 
+                                      RenditionEngine.ImageSource image, 
+                                      DocImageRendition rendition) throws DocException
+    {
+        RenditionFileCache cache = renditionCache;
+        if (cache != null) {
+            byte[] data = cache.get(contentHash, rendition);
+            if (data != null) {
+                return data;
+            }
+        }
+        byte[] data = RenditionEngine.getDefault().createRendition(contentHash, image, rendition);
+        if (cache != null) {
+            cache.put(contentHash, rendition, data);
+        }
+        return data;
+    }
+
+    /**
+     * Writes the rendition of the given image file to <code>fout</code>.
+     * The rendition is created by {@link #getRendition(File, DocImageRendition)},
+     * i.e. by the default rendition engine, and is read from the rendition 
+     * cache, if available.
+     */
     public static void createRendition(File fout, File image, DocImageRendition rendition) throws Exception
     {
-        BufferedImage sourceImage = ImageIO.read(image);
-        BufferedImage renditionImage = render(sourceImage, rendition);
-        RenderedOp ro = JAI.create("filestore", renditionImage, fout.getAbsolutePath(), rendition.getFormat(), null);
-        if (ro != null) ro.dispose();  // this is required to release file handle to fout
+        byte[] data = getRendition(image, rendition);
+        OutputStream out = new FileOutputStream(fout);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
     }
 
     public static void createRendition(OutputStream out, InputStream image, DocImageRendition rendition) throws Exception
     {
-        BufferedImage sourceImage = ImageIO.read(image);
+        BufferedImage sourceImage = readImage(image, rendition);
         BufferedImage renditionImage = render(sourceImage, rendition);
         JAI.create("encode", renditionImage, out, rendition.getFormat(), null);
     }
 
+    /**
+     * Returns the width and height of the given image without decoding 
+     * the image data. Only the image header is read. Returns null if no 
+     * image reader is available for the image format.
+     */
+    public static int[] readImageSize(InputStream image) throws IOException
+    {
+        ImageInputStream iis = ImageIO.createImageInputStream(image);
+        if (iis == null) {
+            return null;
+        }
+        try {
+            Iterator<ImageReader> it = ImageIO.getImageReaders(iis);
+            if (! it.hasNext()) {
+                return null;
+            }
+            ImageReader reader = it.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * Returns the largest subsampling factor for the given image size, 
+     * such that the subsampled image is still at least as large as the 
+     * rendition. Returns 1 if the image is not scaled down.
+     */
+    static int getSubsamplingFactor(int img_width, int img_height, DocImageRendition rendition)
+    {
+        int max_w = rendition.getMaxWidth();
+        int max_h = rendition.getMaxHeight();
+        if ((max_w <= 0) || (max_h <= 0) || ((img_width <= max_w) && (img_height <= max_h))) {
+            return 1;
+        }
+        // Same scale factor as in render()
+        double scale = Math.min((double) max_w / img_width, (double) max_h / img_height);
+        int factor = (int) Math.floor(1.0 / scale);
+        return Math.max(1, factor);
+    }
+
+    private static String getContentHash(File image) throws IOException
+    {
+        String path = image.getAbsolutePath();
+        long len = image.length();
+        long modified = image.lastModified();
+        synchronized (fileHashes) {
+            FileHash fh = fileHashes.get(path);
+            if ((fh != null) && (fh.length == len) && (fh.lastModified == modified)) {
+                return fh.hash;
+            }
+        }
+        String hash = RenditionFileCache.computeContentHash(image);
+        // Only remember the hash if the file has not been changed meanwhile
+        if ((image.length() == len) && (image.lastModified() == modified)) {
+            synchronized (fileHashes) {
+                fileHashes.put(path, new FileHash(len, modified, hash));
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Decodes the image. If the image is larger than the rendition, every 
+     * n-th pixel in each direction is decoded only (source subsampling). 
+     * The image size is read from the image header before decoding. 
+     * Therefore the complete full-resolution image is never held in memory.
+     */
+    private static BufferedImage readImage(InputStream image, DocImageRendition rendition) throws IOException
+    {
+        ImageInputStream iis = ImageIO.createImageInputStream(image);
+        if (iis == null) {
+            return ImageIO.read(image);
+        }
+        try {
+            Iterator<ImageReader> it = ImageIO.getImageReaders(iis);
+            if (! it.hasNext()) {
+                return null;   // same as ImageIO.read() for unknown formats
+            }
+            ImageReader reader = it.next();
+            try {
+                reader.setInput(iis, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int factor = getSubsamplingFactor(reader.getWidth(0), reader.getHeight(0), rendition);
+                if (factor > 1) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
 
     private static BufferedImage render(RenderedImage image, DocImageRendition rendition)
     {
@@ -90,4 +301,18 @@ public class ImageHelper
         return temp.getAsBufferedImage();
     }
 
+    private static class FileHash
+    {
+        final long length;
+        final long lastModified;
+        final String hash;
+
+        FileHash(long length, long lastModified, String hash)
+        {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
 }
@@ -0,0 +1,144 @@
+/*
+ * ImageRenditionCache.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi.implementation;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.docma.coreapi.DocImageRendition;
+
+/**
+ * Cache of the image rendition definitions of all stores of a manager.
+ * The definitions are stored as store properties. The cache is shared by
+ * all sessions of the manager and is invalidated whenever the store
+ * properties of a store are changed.
+ *
+ * @author MP
+ */
+class ImageRenditionCache
+{
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    // Number of running transactions that have changed the store properties
+    private final Map<String, AtomicInteger> uncommitted = new HashMap<String, AtomicInteger>();
+
+    // Incremented on each invalidation. Used to detect definitions that
+    // have been loaded concurrently to a modification.
+    private final AtomicLong generation = new AtomicLong(0);
+
+
+    Entry get(String storeId)
+    {
+        return entries.get(storeId);
+    }
+
+    long getGeneration()
+    {
+        return generation.get();
+    }
+
+    /**
+     * Adds the definitions that have been loaded by a session.
+     * The definitions are not added, if the cache has been invalidated
+     * after the given generation has been read, i.e. after loading started.
+     */
+    void put(String storeId, Entry entry, long loadGeneration)
+    {
+        synchronized (uncommitted) {
+            if (uncommitted.containsKey(storeId)) {
+                return;   // definitions might change on commit
+            }
+        }
+        entries.put(storeId, entry);
+        if (generation.get() != loadGeneration) {
+            entries.remove(storeId, entry);   // possibly outdated
+        }
+    }
+
+    void invalidate(String storeId)
+    {
+        generation.incrementAndGet();
+        entries.remove(storeId);
+    }
+
+    /**
+     * Called when the store properties have been changed within a 
+     * transaction. The definitions of the store are not cached, until
+     * endUncommitted() has been called for each call of this method.
+     */
+    void beginUncommitted(String storeId)
+    {
+        synchronized (uncommitted) {
+            AtomicInteger cnt = uncommitted.get(storeId);
+            if (cnt == null) {
+                uncommitted.put(storeId, new AtomicInteger(1));
+            } else {
+                cnt.incrementAndGet();
+            }
+        }
+        invalidate(storeId);
+    }
+
+    void endUncommitted(String storeId)
+    {
+        synchronized (uncommitted) {
+            AtomicInteger cnt = uncommitted.get(storeId);
+            if ((cnt != null) && (cnt.decrementAndGet() <= 0)) {
+                uncommitted.remove(storeId);
+            }
+        }
+        invalidate(storeId);
+    }
+
+    void clear()
+    {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    /* --------------  Inner classes  ---------------------- */
+
+    /**
+     * Immutable set of rendition definitions of one store.
+     */
+    static class Entry
+    {
+        private final DocImageRendition[] renditions;
+        private final Map<String, DocImageRendition> byName;
+
+        Entry(DocImageRendition[] renditions)
+        {
+            this.renditions = renditions;
+            this.byName = new HashMap<String, DocImageRendition>();
+            for (DocImageRendition r : renditions) {
+                if (r != null) {
+                    byName.put(r.getName(), r);
+                }
+            }
+        }
+
+        DocImageRendition[] getRenditions()
+        {
+            return renditions.clone();
+        }
+
+        DocImageRendition getRendition(String name)
+        {
+            return byName.get(name);
+        }
+    }
+}
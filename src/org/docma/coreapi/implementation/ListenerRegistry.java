@@ -0,0 +1,232 @@
+/*
+ * ListenerRegistry.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi.implementation;
+
+import java.util.*;
+
+/**
+ * Thread-safe list of listeners. Listeners are compared by identity and
+ * each listener is contained at most once. Adding and removing a listener
+ * does not copy the list. Instead, an immutable snapshot of the listeners
+ * is created on the first read access after a modification. Iterating
+ * over a snapshot is not affected by concurrent modifications.
+ * <p>
+ * The registry implements the <code>List</code> interface, i.e. it can
+ * be used where a plain list of listeners was used before. Index based
+ * methods, like <code>get(int)</code> and <code>size()</code>, refer to the
+ * current snapshot. To iterate over a consistent set of listeners, the
+ * snapshot returned by {@link #getListeners()} or the iterator of this
+ * list has to be used.
+ * </p>
+ *
+ * @author MP
+ */
+public class ListenerRegistry<T> extends AbstractList<T> implements RandomAccess
+{
+    private static final Object[] EMPTY = new Object[0];
+
+    private final Map<IdentityKey, T> listeners = new LinkedHashMap<IdentityKey, T>();
+    private volatile Object[] snapshot = EMPTY;
+
+
+    public ListenerRegistry()
+    {
+    }
+
+    /* --------------  Public methods  ---------------------- */
+
+    /**
+     * Returns an unmodifiable snapshot of the listeners in the given list.
+     * If the list is a <code>ListenerRegistry</code>, the snapshot of the
+     * registry is returned without copying. Otherwise a copy of the list is
+     * created while holding the lock of the list.
+     */
+    public static <E> List<E> snapshotOf(List<E> list)
+    {
+        if (list instanceof ListenerRegistry) {
+            return ((ListenerRegistry<E>) list).getListeners();
+        }
+        synchronized (list) {
+            return Collections.unmodifiableList(new ArrayList<E>(list));
+        }
+    }
+
+    /**
+     * Adds the given listener to the end of the list. If the listener is
+     * already contained, it is moved to the end of the list.
+     *
+     * @return  always true
+     */
+    public synchronized boolean add(T listener)
+    {
+        IdentityKey key = new IdentityKey(listener);
+        listeners.remove(key);
+        listeners.put(key, listener);
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * Removes the given listener.
+     *
+     * @return  true if the listener was contained in the list
+     */
+    public synchronized boolean remove(Object listener)
+    {
+        boolean removed = (listeners.remove(new IdentityKey(listener)) != null);
+        if (removed) {
+            snapshot = null;
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the listener at the given position of the current snapshot.
+     */
+    public synchronized T remove(int index)
+    {
+        T listener = get(index);
+        remove(listener);
+        return listener;
+    }
+
+    public synchronized void clear()
+    {
+        if (! listeners.isEmpty()) {
+            listeners.clear();
+            snapshot = null;
+        }
+    }
+
+    public boolean contains(Object listener)
+    {
+        return indexOf(listener) >= 0;
+    }
+
+    public int indexOf(Object listener)
+    {
+        Object[] snap = getSnapshot();
+        for (int i = 0; i < snap.length; i++) {
+            if (snap[i] == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int lastIndexOf(Object listener)
+    {
+        return indexOf(listener);   // each listener is contained at most once
+    }
+
+    public T get(int index)
+    {
+        @SuppressWarnings("unchecked")
+        T listener = (T) getSnapshot()[index];   // snapshot contains only T instances
+        return listener;
+    }
+
+    public boolean isEmpty()
+    {
+        return getSnapshot().length == 0;
+    }
+
+    public int size()
+    {
+        return getSnapshot().length;
+    }
+
+    /**
+     * Returns an iterator over the current snapshot. The iterator does not
+     * support removal.
+     */
+    public Iterator<T> iterator()
+    {
+        return getListeners().iterator();
+    }
+
+    /**
+     * Returns an unmodifiable snapshot of the registered listeners.
+     */
+    public List<T> getListeners()
+    {
+        @SuppressWarnings("unchecked")
+        List<T> list = (List<T>) Arrays.asList(getSnapshot());   // snapshot contains only T instances
+        return Collections.unmodifiableList(list);
+    }
+
+    public Object[] toArray()
+    {
+        return getSnapshot().clone();
+    }
+
+    /**
+     * Returns the registered listeners as array.
+     * See <code>Collection.toArray(Object[])</code>.
+     */
+    public <E> E[] toArray(E[] arr)
+    {
+        Object[] snap = getSnapshot();
+        if (arr.length < snap.length) {
+            @SuppressWarnings("unchecked")
+            E[] new_arr = (E[]) java.lang.reflect.Array.newInstance(arr.getClass().getComponentType(), snap.length);
+            arr = new_arr;
+        }
+        System.arraycopy(snap, 0, arr, 0, snap.length);
+        if (arr.length > snap.length) {
+            arr[snap.length] = null;
+        }
+        return arr;
+    }
+
+    /* --------------  Private methods  ---------------------- */
+
+    private Object[] getSnapshot()
+    {
+        Object[] snap = snapshot;
+        if (snap == null) {
+            synchronized (this) {
+                snap = snapshot;
+                if (snap == null) {
+                    snap = listeners.isEmpty() ? EMPTY : listeners.values().toArray();
+                    snapshot = snap;
+                }
+            }
+        }
+        return snap;
+    }
+
+    /* --------------  Inner classes  ---------------------- */
+
+    private static class IdentityKey
+    {
+        private final Object obj;
+
+        IdentityKey(Object obj)
+        {
+            this.obj = obj;
+        }
+
+        public int hashCode()
+        {
+            return System.identityHashCode(obj);
+        }
+
+        public boolean equals(Object other)
+        {
+            return (other instanceof IdentityKey) && (((IdentityKey) other).obj == obj);
+        }
+    }
+}
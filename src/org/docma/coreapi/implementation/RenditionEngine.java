@@ -0,0 +1,351 @@
+/*
+ * RenditionEngine.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi.implementation;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.docma.coreapi.*;
+import org.docma.util.Log;
+
+/**
+ * Creates image renditions with a bounded pool of worker threads.
+ * The number of source image pixels that are decoded concurrently is
+ * limited by a pixel budget, to cap the heap used for decoded images.
+ * Concurrent requests for the same image and rendition share one
+ * computation.
+ *
+ * @author MP
+ */
+public class RenditionEngine
+{
+    public static final long DEFAULT_PIXEL_BUDGET = 64L * 1024 * 1024;  // approx. 256 MB for ARGB images
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private static RenditionEngine defaultEngine = null;
+
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, FutureTask<byte[]>> inFlight =
+        new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+    // Pixel budget
+    private final long pixelBudget;
+    private final Object budgetLock = new Object();
+    private long pixelsInFlight = 0;
+
+    // Metrics
+    private final AtomicLong submittedCount = new AtomicLong(0);
+    private final AtomicLong completedCount = new AtomicLong(0);
+    private final AtomicLong failedCount = new AtomicLong(0);
+    private final AtomicLong sharedCount = new AtomicLong(0);
+    private final AtomicLong budgetWaitCount = new AtomicLong(0);
+    private final AtomicLong peakPixelsInFlight = new AtomicLong(0);
+
+
+    /**
+     * Creates an engine with the given number of worker threads and the
+     * given pixel budget. If the queue of waiting requests is full, or if
+     * the engine has been shut down, the rendition is created by the
+     * requesting thread.
+     *
+     * @param maxThreads  the number of worker threads
+     * @param pixelBudget  maximum number of source pixels decoded concurrently
+     * @param maxQueueSize  maximum number of waiting requests
+     */
+    public RenditionEngine(int maxThreads, long pixelBudget, int maxQueueSize)
+    {
+        if ((maxThreads <= 0) || (pixelBudget <= 0) || (maxQueueSize <= 0)) {
+            throw new IllegalArgumentException("Invalid rendition engine configuration.");
+        }
+        this.pixelBudget = pixelBudget;
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(maxQueueSize),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "docma-rendition-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            },
+            new RunInCallerPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the engine that is shared by all stores.
+     */
+    public static synchronized RenditionEngine getDefault()
+    {
+        if (defaultEngine == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            defaultEngine = new RenditionEngine(threads, DEFAULT_PIXEL_BUDGET, DEFAULT_QUEUE_SIZE);
+        }
+        return defaultEngine;
+    }
+
+    /* --------------  Public methods  ---------------------- */
+
+    /**
+     * Creates the rendition of the given image file and waits until the
+     * rendition is available.
+     *
+     * @param imageKey  identifies the image content, e.g. node id and
+     *                  modification time; if null, the file path, length
+     *                  and modification time are used
+     * @param image  the source image
+     * @param rendition  the rendition definition
+     * @return  the encoded rendition
+     */
+    public byte[] createRendition(String imageKey, File image, DocImageRendition rendition)
+    throws DocException
+    {
+        return getResult(submitRendition(imageKey, image, rendition));
+    }
+
+    public byte[] createRendition(String imageKey, ImageSource image, DocImageRendition rendition)
+    throws DocException
+    {
+        return getResult(submitRendition(imageKey, image, rendition));
+    }
+
+    public Future<byte[]> submitRendition(String imageKey, final File image, DocImageRendition rendition)
+    {
+        if (imageKey == null) {
+            imageKey = image.getAbsolutePath() + "|" + image.length() + "|" + image.lastModified();
+        }
+        return submitRendition(imageKey, new ImageSource() {
+            public InputStream openStream() throws IOException {
+                return new BufferedInputStream(new FileInputStream(image));
+            }
+        }, rendition);
+    }
+
+    /**
+     * Queues the creation of a rendition. If a rendition for the same
+     * image key and rendition definition is already queued or running,
+     * the future of the running computation is returned.
+     *
+     * @param imageKey  identifies the image content
+     * @param image  provides the source image; the stream may be opened
+     *               twice, to read the image size before decoding
+     * @param rendition  the rendition definition
+     * @return  the future result
+     */
+    public Future<byte[]> submitRendition(String imageKey, ImageSource image, DocImageRendition rendition)
+    {
+        final String key = imageKey + "|" + rendition.getName() + "|" + rendition.getFormat() + "|" +
+                           rendition.getMaxWidth() + "x" + rendition.getMaxHeight();
+        submittedCount.incrementAndGet();
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new RenditionTask(image, rendition)) {
+            protected void done() {
+                inFlight.remove(key, this);
+            }
+        };
+        FutureTask<byte[]> existing = inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            sharedCount.incrementAndGet();
+            return existing;
+        }
+        executor.execute(task);   // runs task in this thread, if rejected
+        return task;
+    }
+
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /* --------------  Metrics  ---------------------- */
+
+    public int getQueueLength()
+    {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount()
+    {
+        return executor.getActiveCount();
+    }
+
+    public long getSubmittedCount()
+    {
+        return submittedCount.get();
+    }
+
+    public long getCompletedCount()
+    {
+        return completedCount.get();
+    }
+
+    public long getFailedCount()
+    {
+        return failedCount.get();
+    }
+
+    /**
+     * Returns the number of requests that have been served by the
+     * computation of a concurrent request for the same rendition.
+     */
+    public long getSharedCount()
+    {
+        return sharedCount.get();
+    }
+
+    /**
+     * Returns how often a worker had to wait for the pixel budget.
+     */
+    public long getBudgetWaitCount()
+    {
+        return budgetWaitCount.get();
+    }
+
+    public long getPixelBudget()
+    {
+        return pixelBudget;
+    }
+
+    public long getPixelsInFlight()
+    {
+        synchronized (budgetLock) {
+            return pixelsInFlight;
+        }
+    }
+
+    public long getPeakPixelsInFlight()
+    {
+        return peakPixelsInFlight.get();
+    }
+
+    /* --------------  Private methods  ---------------------- */
+
+    private static byte[] getResult(Future<byte[]> future) throws DocException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DocException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof DocException) throw (DocException) cause;
+            throw new DocException(cause);
+        }
+    }
+
+    private long acquirePixels(long pixels) throws InterruptedException
+    {
+        // An image that exceeds the budget is decoded when no other
+        // image is in flight.
+        long amount = Math.min(pixels, pixelBudget);
+        synchronized (budgetLock) {
+            if (pixelsInFlight + amount > pixelBudget) {
+                budgetWaitCount.incrementAndGet();
+                while (pixelsInFlight + amount > pixelBudget) {
+                    budgetLock.wait();
+                }
+            }
+            pixelsInFlight += amount;
+            if (pixelsInFlight > peakPixelsInFlight.get()) {
+                peakPixelsInFlight.set(pixelsInFlight);
+            }
+        }
+        return amount;
+    }
+
+    private void releasePixels(long amount)
+    {
+        synchronized (budgetLock) {
+            pixelsInFlight -= amount;
+            budgetLock.notifyAll();
+        }
+    }
+
+    /* --------------  Inner classes  ---------------------- */
+
+    /**
+     * Provides the content of a source image.
+     */
+    public interface ImageSource
+    {
+        InputStream openStream() throws IOException;
+    }
+
+    /**
+     * Runs a rejected task in the calling thread. In contrast to 
+     * <code>CallerRunsPolicy</code>, the task is also run after the 
+     * executor has been shut down. Otherwise the future would never 
+     * complete and the in-flight entry would never be removed.
+     */
+    private static class RunInCallerPolicy implements RejectedExecutionHandler
+    {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+        {
+            r.run();
+        }
+    }
+
+    private class RenditionTask implements Callable<byte[]>
+    {
+        private final ImageSource image;
+        private final DocImageRendition rendition;
+
+        RenditionTask(ImageSource image, DocImageRendition rendition)
+        {
+            this.image = image;
+            this.rendition = rendition;
+        }
+
+        public byte[] call() throws Exception
+        {
+            long pixels = pixelBudget;   // unknown size: use complete budget
+            InputStream in = image.openStream();
+            try {
+                int[] size = ImageHelper.readImageSize(in);
+                if (size != null) {
+                    // The image is decoded with source subsampling, i.e. 
+                    // only every f-th pixel in each direction is held.
+                    long f = ImageHelper.getSubsamplingFactor(size[0], size[1], rendition);
+                    pixels = ((size[0] + f - 1) / f) * ((size[1] + f - 1) / f);
+                }
+            } catch (Exception ex) {
+                Log.warning("Could not read image size: " + ex.getMessage());
+            } finally {
+                in.close();
+            }
+
+            long acquired = acquirePixels(pixels);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                in = image.openStream();
+                try {
+                    ImageHelper.createRendition(out, in, rendition);
+                } finally {
+                    in.close();
+                }
+                completedCount.incrementAndGet();
+                return out.toByteArray();
+            } catch (Exception ex) {
+                failedCount.incrementAndGet();
+                throw ex;
+            } finally {
+                releasePixels(acquired);
+            }
+        }
+    }
+}
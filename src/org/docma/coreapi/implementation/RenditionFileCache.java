@@ -0,0 +1,353 @@
+/*
+ * RenditionFileCache.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi.implementation;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.docma.coreapi.*;
+import org.docma.util.Log;
+
+/**
+ * Disk-backed cache of image renditions. Renditions are addressed by the
+ * hash of the source image content and the rendition definition, i.e.
+ * identical images in different nodes, versions or stores share the same
+ * cache entry. The total size of the cache is bounded. If the size is
+ * exceeded, the least recently used renditions are deleted.
+ * Files are written to a temporary file first and then moved to the
+ * final name, i.e. readers never see partially written files.
+ *
+ * @author MP
+ */
+public class RenditionFileCache
+{
+    private static final String FILE_EXT = ".rend";
+    private static final String TEMP_EXT = ".tmp";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File cacheDir;
+    private final long maxBytes;
+
+    // Entries in access order (least recently used first)
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(256, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong evictionCount = new AtomicLong(0);
+
+
+    /**
+     * Creates a cache in the given directory. Existing cache files are
+     * taken over, where the modification time determines the LRU order.
+     *
+     * @param cacheDir  the cache directory
+     * @param maxBytes  the maximum total size of all cached renditions
+     */
+    public RenditionFileCache(File cacheDir, long maxBytes)
+    {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+        if (! (cacheDir.isDirectory() || cacheDir.mkdirs())) {
+            Log.warning("Could not create rendition cache directory: " + cacheDir);
+        }
+        loadEntries();
+    }
+
+    /* --------------  Public methods  ---------------------- */
+
+    /**
+     * Returns the hex-encoded SHA-256 hash of the given content.
+     * The stream is read to the end, but is not closed.
+     */
+    public static String computeContentHash(InputStream in) throws IOException
+    {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (Exception ex) {
+            throw new DocRuntimeException(ex);
+        }
+        byte[] buf = new byte[64*1024];
+        int cnt;
+        while ((cnt = in.read(buf)) >= 0) {
+            md.update(buf, 0, cnt);
+        }
+        return toHex(md.digest());
+    }
+
+    public static String computeContentHash(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try {
+            return computeContentHash(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the cached rendition or null, if the rendition is not cached.
+     */
+    public byte[] get(String contentHash, DocImageRendition rendition)
+    {
+        String key = getKey(contentHash, rendition);
+        synchronized (this) {
+            if (entries.get(key) == null) {   // updates access order
+                missCount.incrementAndGet();
+                return null;
+            }
+        }
+        File f = getFile(key);
+        try {
+            byte[] data = readFile(f);
+            hitCount.incrementAndGet();
+            // Persist the access order for the next start
+            f.setLastModified(System.currentTimeMillis());
+            return data;
+        } catch (IOException ex) {
+            // File has been deleted externally or concurrently evicted
+            synchronized (this) {
+                removeEntry(key);
+            }
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Adds the rendition to the cache. If the rendition is already cached,
+     * the existing file is replaced.
+     */
+    public void put(String contentHash, DocImageRendition rendition, byte[] data)
+    {
+        if (data.length > maxBytes) {
+            return;
+        }
+        String key = getKey(contentHash, rendition);
+        File target = getFile(key);
+        File dir = target.getParentFile();
+        File tmp = null;
+        try {
+            if (! (dir.isDirectory() || dir.mkdirs())) {
+                throw new IOException("Could not create directory " + dir);
+            }
+            tmp = File.createTempFile(key, TEMP_EXT, dir);
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmp.toPath(), target.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+        } catch (IOException ex) {
+            Log.warning("Could not write rendition to cache: " + ex.getMessage());
+            return;
+        } finally {
+            if ((tmp != null) && tmp.exists() && !tmp.delete()) {
+                Log.warning("Could not delete temporary rendition file: " + tmp);
+            }
+        }
+        synchronized (this) {
+            removeEntry(key);
+            entries.put(key, (long) data.length);
+            totalBytes += data.length;
+            evict();
+        }
+    }
+
+    /**
+     * Removes all cached renditions.
+     */
+    public synchronized void clear()
+    {
+        for (String key : new ArrayList<String>(entries.keySet())) {
+            deleteFile(key);
+        }
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public File getCacheDir()
+    {
+        return cacheDir;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public synchronized long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictionCount.get();
+    }
+
+    /* --------------  Private methods  ---------------------- */
+
+    private static String toHex(byte[] bytes)
+    {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2*i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2*i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the hash of the content hash and the rendition definition.
+     * The hash is used as file name. Hashing avoids collisions of 
+     * definitions that differ only in characters that are not allowed 
+     * in file names, or only in case on case-insensitive file systems.
+     */
+    private static String getKey(String contentHash, DocImageRendition rendition)
+    {
+        // Prefix each string with its length, i.e. the encoding is unambiguous
+        StringBuilder sb = new StringBuilder();
+        appendField(sb, contentHash.toLowerCase());
+        appendField(sb, rendition.getName());
+        appendField(sb, rendition.getFormat());
+        sb.append(rendition.getMaxWidth()).append('x').append(rendition.getMaxHeight());
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return toHex(md.digest(sb.toString().getBytes("UTF-8")));
+        } catch (Exception ex) {
+            throw new DocRuntimeException(ex);
+        }
+    }
+
+    private static void appendField(StringBuilder sb, String value)
+    {
+        if (value == null) {
+            sb.append("-1:");
+        } else {
+            sb.append(value.length()).append(':').append(value);
+        }
+    }
+
+    private File getFile(String key)
+    {
+        // Use sub-directories to limit the number of files per directory
+        String sub = (key.length() >= 2) ? key.substring(0, 2) : "00";
+        return new File(new File(cacheDir, sub), key + FILE_EXT);
+    }
+
+    private static byte[] readFile(File f) throws IOException
+    {
+        return Files.readAllBytes(f.toPath());
+    }
+
+    private void loadEntries()
+    {
+        List<File> files = new ArrayList<File>();
+        File[] subdirs = cacheDir.listFiles();
+        if (subdirs == null) {
+            return;
+        }
+        for (File sub : subdirs) {
+            File[] arr = sub.isDirectory() ? sub.listFiles() : null;
+            if (arr == null) {
+                continue;
+            }
+            for (File f : arr) {
+                String fn = f.getName();
+                if (fn.endsWith(FILE_EXT)) {
+                    files.add(f);
+                } else if (fn.endsWith(TEMP_EXT)) {
+                    f.delete();   // left over from interrupted write
+                }
+            }
+        }
+        final Map<File, Long> times = new HashMap<File, Long>();
+        for (File f : files) {
+            times.put(f, f.lastModified());
+        }
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long t1 = times.get(f1);
+                long t2 = times.get(f2);
+                return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+            }
+        });
+        synchronized (this) {
+            for (File f : files) {
+                String fn = f.getName();
+                String key = fn.substring(0, fn.length() - FILE_EXT.length());
+                long len = f.length();
+                entries.put(key, len);
+                totalBytes += len;
+            }
+            evict();
+        }
+    }
+
+    private void removeEntry(String key)
+    {
+        Long len = entries.remove(key);
+        if (len != null) {
+            totalBytes -= len;
+        }
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while ((totalBytes > maxBytes) && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            it.remove();
+            totalBytes -= e.getValue();
+            deleteFile(e.getKey());
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    private void deleteFile(String key)
+    {
+        File f = getFile(key);
+        if (f.exists() && !f.delete()) {
+            Log.warning("Could not delete cached rendition: " + f);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * RenditionPrewarmer.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi.implementation;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.docma.coreapi.*;
+import org.docma.util.Log;
+
+/**
+ * Creates the image renditions of added or changed image nodes in the
+ * background, i.e. before the renditions are requested the first time.
+ * The renditions are created by a single low priority thread, which uses
+ * its own session. If a node is changed again before its renditions have
+ * been created, the pending task is cancelled and replaced by a new task.
+ * When no more tasks are pending, the prewarm session closes its store,
+ * i.e. the session does not keep store instances open while idle.
+ *
+ * @author MP
+ */
+public class RenditionPrewarmer
+{
+    public static final long DEFAULT_DELAY = 2000;  // milliseconds
+
+    private final DocStoreManager manager;
+    private final String userId;
+    private final long delay;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentMap<String, PrewarmTask> pending = new ConcurrentHashMap<String, PrewarmTask>();
+    private final Map<AbstractDocStore, StoreListener> listeners = new IdentityHashMap<AbstractDocStore, StoreListener>();
+
+    // Only accessed by the prewarm thread
+    private DocStoreSession session = null;
+
+    private volatile boolean shutdown = false;
+    private final AtomicLong scheduledCount = new AtomicLong(0);
+    private final AtomicLong cancelledCount = new AtomicLong(0);
+    private final AtomicLong renditionCount = new AtomicLong(0);
+    private final AtomicLong failedCount = new AtomicLong(0);
+
+
+    /**
+     * Creates a prewarmer that opens a session for the given user.
+     *
+     * @param manager  the manager used to connect the session
+     * @param userId  the user of the prewarm session
+     * @param delay  the time in milliseconds between the change of a node
+     *               and the creation of its renditions
+     */
+    public RenditionPrewarmer(DocStoreManager manager, String userId, long delay)
+    {
+        this.manager = manager;
+        this.userId = userId;
+        this.delay = delay;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "docma-rendition-prewarm");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /* --------------  Public methods  ---------------------- */
+
+    /**
+     * Registers a listener on the given store instance, which schedules
+     * the creation of renditions for added and changed nodes.
+     */
+    public void register(AbstractDocStore store)
+    {
+        synchronized (listeners) {
+            if (shutdown || listeners.containsKey(store)) {
+                return;
+            }
+            StoreListener listener = new StoreListener(store.getStoreId(), store.getVersionId());
+            listeners.put(store, listener);
+            store.addDocListener(listener);
+        }
+    }
+
+    /**
+     * Removes the listener from the given store instance. Called when the
+     * store instance is removed by the manager.
+     */
+    public void unregister(AbstractDocStore store)
+    {
+        synchronized (listeners) {
+            StoreListener listener = listeners.remove(store);
+            if (listener != null) {
+                store.removeDocListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Removes all listeners, cancels all pending tasks and closes the 
+     * prewarm session.
+     */
+    public void shutdown()
+    {
+        synchronized (listeners) {
+            shutdown = true;
+            for (Map.Entry<AbstractDocStore, StoreListener> e : listeners.entrySet()) {
+                e.getKey().removeDocListener(e.getValue());
+            }
+            listeners.clear();
+        }
+        for (PrewarmTask task : pending.values()) {
+            task.cancel();
+        }
+        pending.clear();
+        executor.execute(new Runnable() {
+            public void run() {
+                closeSession();
+            }
+        });
+        executor.shutdown();
+    }
+
+    public int getPendingCount()
+    {
+        return pending.size();
+    }
+
+    public long getScheduledCount()
+    {
+        return scheduledCount.get();
+    }
+
+    /**
+     * Returns the number of tasks that have been cancelled, because the
+     * node has been changed again.
+     */
+    public long getCancelledCount()
+    {
+        return cancelledCount.get();
+    }
+
+    public long getRenditionCount()
+    {
+        return renditionCount.get();
+    }
+
+    public long getFailedCount()
+    {
+        return failedCount.get();
+    }
+
+    /* --------------  Private methods  ---------------------- */
+
+    private void schedule(String storeId, DocVersionId verId, String nodeId)
+    {
+        if (shutdown) {
+            return;
+        }
+        String key = storeId + " " + verId + " " + nodeId;
+        PrewarmTask task = new PrewarmTask(key, storeId, verId, nodeId);
+        PrewarmTask previous = pending.put(key, task);
+        if (previous != null) {
+            previous.cancel();
+            cancelledCount.incrementAndGet();
+        }
+        try {
+            task.future = executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+            scheduledCount.incrementAndGet();
+        } catch (RejectedExecutionException ex) {
+            pending.remove(key, task);
+        }
+    }
+
+    private DocStoreSession getSession(String storeId, DocVersionId verId) throws DocException
+    {
+        if (session == null) {
+            session = manager.connect(userId);
+        }
+        if (! (storeId.equals(session.getStoreId()) && verId.equals(session.getVersionId()))) {
+            if (session.getStoreId() != null) {
+                session.closeDocStore();
+            }
+            session.openDocStore(storeId, verId);
+        }
+        return session;
+    }
+
+    /**
+     * Closes the store of the prewarm session, so that the store instance
+     * can be released by the manager.
+     */
+    private void closeStore()
+    {
+        if ((session != null) && (session.getStoreId() != null)) {
+            try {
+                session.closeDocStore();
+            } catch (Exception ex) {
+                Log.warning("Closing of rendition prewarm store failed: " + ex.getMessage());
+                closeSession();
+            }
+        }
+    }
+
+    private void closeSession()
+    {
+        if (session != null) {
+            try {
+                if (session.getStoreId() != null) {
+                    session.closeDocStore();
+                }
+                session.closeSession();
+            } catch (Exception ex) {
+                Log.warning("Closing of rendition prewarm session failed: " + ex.getMessage());
+            }
+            session = null;
+        }
+    }
+
+    /* --------------  Inner classes  ---------------------- */
+
+    private class StoreListener implements DocListener
+    {
+        private final String storeId;
+        private final DocVersionId verId;
+
+        StoreListener(String storeId, DocVersionId verId)
+        {
+            this.storeId = storeId;
+            this.verId = verId;
+        }
+
+        public void event(DocEvent evt)
+        {
+            String name = evt.getEventName();
+            if (DocEvent.NODES_ADDED.equals(name) || DocEvent.NODES_CHANGED.equals(name)) {
+                for (Object node_id : evt.getNodeIds()) {
+                    if (node_id != null) {
+                        schedule(storeId, verId, node_id.toString());
+                    }
+                }
+            }
+        }
+    }
+
+    private class PrewarmTask implements Runnable
+    {
+        private final String key;
+        private final String storeId;
+        private final DocVersionId verId;
+        private final String nodeId;
+        private volatile boolean cancelled = false;
+        volatile Future<?> future = null;
+
+        PrewarmTask(String key, String storeId, DocVersionId verId, String nodeId)
+        {
+            this.key = key;
+            this.storeId = storeId;
+            this.verId = verId;
+            this.nodeId = nodeId;
+        }
+
+        void cancel()
+        {
+            cancelled = true;
+            Future<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+        }
+
+        public void run()
+        {
+            try {
+                if (cancelled || shutdown) {
+                    return;
+                }
+                DocStoreSession sess = getSession(storeId, verId);
+                DocNode node = sess.getNodeById(nodeId);
+                if (node instanceof DocImage) {
+                    DocImageRendition[] renditions = sess.getImageRenditions();
+                    for (DocImageRendition rendition : renditions) {
+                        if (cancelled || shutdown) {
+                            break;
+                        }
+                        if (rendition != null) {
+                            ((DocImage) node).getRendition(rendition);
+                            renditionCount.incrementAndGet();
+                        }
+                    }
+                }
+            } catch (Exception ex) {
+                failedCount.incrementAndGet();
+                Log.info("Could not create renditions of node " + nodeId + ": " + ex.getMessage());
+                closeSession();   // session might be in an invalid state
+            } finally {
+                pending.remove(key, this);
+                if (pending.isEmpty()) {
+                    closeStore();   // queue drained; do not keep store open
+                }
+            }
+        }
+    }
+}
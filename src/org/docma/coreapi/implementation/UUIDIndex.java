@@ -0,0 +1,450 @@
+/*
+ * UUIDIndex.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi.implementation;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.docma.coreapi.*;
+import org.docma.util.Log;
+
+/**
+ * Index that maps the UUIDs of stores and versions to store ids and version
+ * addresses. The index is filled store by store in a background thread,
+ * which uses its own session. Lookups of UUIDs of stores that have already
+ * been indexed are answered immediately. Only a lookup of an unknown UUID
+ * waits until the background indexing is finished.
+ * <p>
+ * Optionally the index is saved to a snapshot file after indexing has been
+ * finished. At restart, the stores contained in the snapshot are not
+ * scanned again. Entries loaded from the snapshot are validated against
+ * the store when they are looked up for the first time. If the lookup of
+ * an unknown UUID happens when all stores are indexed, the lookup returns
+ * immediately, i.e. the stores are not scanned again. Versions created by
+ * other processes after the snapshot was written are therefore found only
+ * after the store has been re-indexed (e.g. after one of its versions has
+ * been removed) or after the snapshot file has been deleted.
+ * </p>
+ *
+ * @author MP
+ */
+class UUIDIndex
+{
+    private static final String SNAPSHOT_STORE = "S";
+    private static final String SNAPSHOT_VERSION = "V";
+
+    private final AbstractDocStoreManager manager;
+
+    // Maps UUID to store id (String) or version address (DocVersionAddress)
+    private final ConcurrentMap<UUID, Object> uuidMap = new ConcurrentHashMap<UUID, Object>(300);
+    private final Set<String> indexedStores =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // UUIDs loaded from the snapshot file that have not been validated yet
+    private final Set<UUID> unvalidated =
+        Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+
+    private final Object pendingLock = new Object();
+    private int pendingRuns = 0;
+    private ExecutorService executor = null;
+    private boolean started = false;
+    private String indexUserId = null;
+
+    private File snapshotFile = null;
+    private long waitTimeout = 60 * 1000L;
+
+
+    UUIDIndex(AbstractDocStoreManager manager)
+    {
+        this.manager = manager;
+    }
+
+    /* --------------  Configuration  ---------------------- */
+
+    synchronized void setSnapshotFile(File file)
+    {
+        this.snapshotFile = file;
+    }
+
+    synchronized File getSnapshotFile()
+    {
+        return snapshotFile;
+    }
+
+    void setWaitTimeout(long millis)
+    {
+        this.waitTimeout = millis;
+    }
+
+    long getWaitTimeout()
+    {
+        return waitTimeout;
+    }
+
+    /* --------------  Lookup  ---------------------- */
+
+    String getDocStoreId(DocStoreSession sess, UUID uuid)
+    {
+        Object obj = lookup(sess, uuid);
+        return (obj instanceof String) ? (String) obj : null;
+    }
+
+    DocVersionAddress getVersionAddress(DocStoreSession sess, UUID uuid)
+    {
+        Object obj = lookup(sess, uuid);
+        return (obj instanceof DocVersionAddress) ? (DocVersionAddress) obj : null;
+    }
+
+    /* --------------  Registration / invalidation  ---------------------- */
+
+    void registerStore(UUID uuid, String storeId)
+    {
+        Object obj = uuidMap.putIfAbsent(uuid, storeId);
+        if ((obj != null) && !storeId.equals(obj)) {
+            throw new DocRuntimeException("Cannot reassign UUID!");
+        }
+    }
+
+    void registerVersion(UUID uuid, DocVersionAddress versionAddr)
+    {
+        Object obj = uuidMap.putIfAbsent(uuid, versionAddr);
+        if ((obj != null) && !versionAddr.equals(obj)) {
+            throw new DocRuntimeException("Cannot reassign UUID!");
+        }
+    }
+
+    /**
+     * Removes all entries of the given store, e.g. if the store has been
+     * deleted or the store id has been changed. If the store still exists
+     * (or exists with a new id), it is indexed again by the next indexing run.
+     */
+    void removeStore(String storeId)
+    {
+        Iterator<Map.Entry<UUID, Object>> it = uuidMap.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<UUID, Object> e = it.next();
+            Object obj = e.getValue();
+            if (storeId.equals(obj) ||
+                ((obj instanceof DocVersionAddress) && storeId.equals(((DocVersionAddress) obj).getStoreId()))) {
+                unvalidated.remove(e.getKey());
+                it.remove();
+            }
+        }
+        indexedStores.remove(storeId);
+    }
+
+    /**
+     * Removes the entry of the given version, e.g. if the version has been
+     * deleted or renamed. The store of the version is indexed again by the
+     * next indexing run.
+     */
+    void removeVersion(String storeId, DocVersionId verId)
+    {
+        uuidMap.values().remove(new DocVersionAddress(storeId, verId));
+        indexedStores.remove(storeId);
+    }
+
+    /* --------------  Snapshot  ---------------------- */
+
+    /**
+     * Writes all entries of indexed stores to the snapshot file (if configured).
+     * The file is written to a temporary file first, which then replaces 
+     * the snapshot file by an atomic move.
+     */
+    void saveSnapshot()
+    {
+        File file = getSnapshotFile();
+        if (file == null) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try {
+                for (Map.Entry<UUID, Object> e : uuidMap.entrySet()) {
+                    Object obj = e.getValue();
+                    String storeId = (obj instanceof DocVersionAddress) ?
+                                     ((DocVersionAddress) obj).getStoreId() : (String) obj;
+                    if (! indexedStores.contains(storeId)) {
+                        continue;  // only save complete stores
+                    }
+                    if (obj instanceof DocVersionAddress) {
+                        DocVersionAddress addr = (DocVersionAddress) obj;
+                        out.write(SNAPSHOT_VERSION + "\t" + e.getKey() + "\t" +
+                                  addr.getStoreId() + "\t" + addr.getVersionId() + "\n");
+                    } else {
+                        out.write(SNAPSHOT_STORE + "\t" + e.getKey() + "\t" + obj + "\n");
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (Exception ex) {
+            Log.warning("Could not write UUID index snapshot " + file + ": " + ex.getMessage());
+        }
+    }
+
+    /* --------------  Private methods  ---------------------- */
+
+    private Object lookup(DocStoreSession sess, UUID uuid)
+    {
+        startIndexing(sess);
+        Object obj = uuidMap.get(uuid);
+        if (obj == null) {
+            // Unknown UUID: the UUID might belong to a store that has not been
+            // indexed yet. Index the missing stores and wait until indexing 
+            // is finished. If all stores are indexed, the UUID does not exist.
+            if (hasUnindexedStores(sess)) {
+                scheduleIndexing(null);
+                waitForIndexing();
+                obj = uuidMap.get(uuid);
+            }
+        } else {
+            obj = validateSnapshotEntry(sess, uuid, obj);
+        }
+        return obj;
+    }
+
+    /**
+     * Entries that have been loaded from the snapshot file might be
+     * outdated. Therefore these entries are compared with the UUID stored
+     * in the store. Only the store that is referenced by the entry is accessed.
+     */
+    private Object validateSnapshotEntry(DocStoreSession sess, UUID uuid, Object obj)
+    {
+        String storeId = (obj instanceof DocVersionAddress) ?
+                         ((DocVersionAddress) obj).getStoreId() : (String) obj;
+        if (! unvalidated.contains(uuid)) {
+            return obj;
+        }
+        boolean valid;
+        try {
+            if (obj instanceof DocVersionAddress) {
+                DocVersionId verId = ((DocVersionAddress) obj).getVersionId();
+                valid = uuid.equals(sess.getVersionUUID(storeId, verId));
+            } else {
+                valid = uuid.equals(sess.getDocStoreUUID(storeId));
+            }
+        } catch (Exception ex) {
+            valid = false;
+        }
+        if (valid) {
+            unvalidated.remove(uuid);
+        } else {
+            Log.info("UUID index snapshot is outdated for store '" + storeId + "'. Reindexing store.");
+            uuidMap.remove(uuid, obj);
+            removeStore(storeId);
+            scheduleIndexing(null);
+            waitForIndexing();
+            return uuidMap.get(uuid);
+        }
+        return obj;
+    }
+
+    private boolean hasUnindexedStores(DocStoreSession sess)
+    {
+        synchronized (pendingLock) {
+            if (pendingRuns > 0) {
+                return true;
+            }
+        }
+        try {
+            for (String store_id : sess.listDocStores()) {
+                if (! indexedStores.contains(store_id)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (Exception ex) {
+            return true;
+        }
+    }
+
+    private synchronized void startIndexing(DocStoreSession sess)
+    {
+        if (started) {
+            return;
+        }
+        started = true;
+        loadSnapshot();
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "docma-uuid-index");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        scheduleIndexing(sess.getUserId());
+    }
+
+    private void scheduleIndexing(String userId)
+    {
+        ExecutorService exec;
+        synchronized (this) {
+            if (userId != null) {
+                indexUserId = userId;
+            }
+            exec = executor;
+        }
+        if (exec == null) {
+            return;   // indexing has not been started yet
+        }
+        synchronized (pendingLock) {
+            pendingRuns++;
+        }
+        exec.execute(new Runnable() {
+            public void run() {
+                try {
+                    indexStores();
+                } finally {
+                    synchronized (pendingLock) {
+                        pendingRuns--;
+                        pendingLock.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private void waitForIndexing()
+    {
+        long end_time = System.currentTimeMillis() + waitTimeout;
+        synchronized (pendingLock) {
+            while (pendingRuns > 0) {
+                long remaining = end_time - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Log.warning("Timeout while waiting for UUID index.");
+                    return;
+                }
+                try {
+                    pendingLock.wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void indexStores()
+    {
+        String userId;
+        synchronized (this) {
+            userId = indexUserId;
+        }
+        DocStoreSession sess = null;
+        try {
+            sess = manager.connect(userId);
+            boolean changed = false;
+            String[] store_ids = sess.listDocStores();
+            for (String store_id : store_ids) {
+                if (! indexedStores.contains(store_id)) {
+                    indexStore(sess, store_id);
+                    indexedStores.add(store_id);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                saveSnapshot();
+            }
+        } catch (Exception ex) {
+            Log.error("Could not create UUID index: " + ex.getMessage());
+        } finally {
+            if (sess != null) {
+                try {
+                    sess.closeSession();
+                } catch (Exception ex) {
+                    Log.warning("Could not close UUID index session: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private void indexStore(DocStoreSession sess, String store_id)
+    {
+        try {
+            UUID store_uuid = sess.getDocStoreUUID(store_id);
+            uuidMap.put(store_uuid, store_id);
+        } catch (Exception ex) {
+            Log.error("Could not get UUID of store '" + store_id + "'.");
+            // Note: Maybe the store has invalid configuration, e.g.
+            //       the configured store path that does not exist.
+            return;
+        }
+        try {
+            DocVersionId[] ver_ids = sess.listVersions(store_id);
+            for (DocVersionId v_id : ver_ids) {
+                DocVersionAddress v_addr = new DocVersionAddress(store_id, v_id);
+                try {
+                    UUID v_uuid = sess.getVersionUUID(store_id, v_id);
+                    uuidMap.put(v_uuid, v_addr);
+                } catch (Exception ex) {
+                    Log.error("Could not get UUID of version '" +
+                              store_id + " V" + v_id + "':" + ex.getMessage());
+                }
+            }
+        } catch (Exception ex) {
+            Log.error("Could not list versions of store '" + store_id + "':" + ex.getMessage());
+            ex.printStackTrace();
+        }
+    }
+
+    private void loadSnapshot()
+    {
+        File file = getSnapshotFile();
+        if ((file == null) || !file.exists()) {
+            return;
+        }
+        VersionIdFactory idFactory = manager.getVersionIdFactory();
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length < 3) {
+                        continue;
+                    }
+                    UUID uuid = UUID.fromString(fields[1]);
+                    String store_id = fields[2];
+                    Object prev;
+                    if (SNAPSHOT_STORE.equals(fields[0])) {
+                        prev = uuidMap.putIfAbsent(uuid, store_id);
+                    } else if (SNAPSHOT_VERSION.equals(fields[0]) && (fields.length >= 4)) {
+                        DocVersionId v_id = idFactory.createVersionId(fields[3]);
+                        prev = uuidMap.putIfAbsent(uuid, new DocVersionAddress(store_id, v_id));
+                    } else {
+                        continue;
+                    }
+                    if (prev == null) {
+                        unvalidated.add(uuid);
+                    }
+                    indexedStores.add(store_id);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (Exception ex) {
+            Log.warning("Could not read UUID index snapshot " + file + ": " + ex.getMessage());
+        }
+    }
+}
@@ -15,7 +15,10 @@
 package org.docma.util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import org.docma.coreapi.*;
 
 /**
@@ -24,6 +27,14 @@ import org.docma.coreapi.*;
  */
 public class DocmaUtil
 {
+    private static final int COPY_BUFFER_SIZE = 64*1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    // Direct buffers for channel copies. Allocating direct buffers is 
+    // expensive, therefore they are reused. The pool is bounded; buffers 
+    // that exceed the pool size are left to the garbage collector.
+    private static final BlockingQueue<ByteBuffer> directBuffers = 
+        new ArrayBlockingQueue<ByteBuffer>(MAX_POOLED_BUFFERS);
 
     public static boolean recursiveFileDelete(File f)
     {
@@ -62,6 +73,73 @@ public class DocmaUtil
         }
     }
 
+    /**
+     * Same as recursiveFileCopy(File, File, boolean), but the files are 
+     * copied concurrently by the given number of threads. Directories are 
+     * created before the files are copied. In contrast to the sequential
+     * copy, files that are not affected by a failure are still copied. 
+     */
+    public static boolean recursiveFileCopy(File sourceDir, File destDir, final boolean overwrite, int maxThreads)
+    {
+        if ((maxThreads <= 1) || !sourceDir.isDirectory()) {
+            return recursiveFileCopy(sourceDir, destDir, overwrite);
+        }
+        List<File[]> files = new ArrayList<File[]>();
+        if (! collectFileCopies(sourceDir, destDir, files)) {
+            return false;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
+        try {
+            CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(executor);
+            for (final File[] pair : files) {
+                completion.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return fileCopy(pair[0], pair[1], overwrite);
+                    }
+                });
+            }
+            boolean okay = true;
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    if (! completion.take().get()) okay = false;
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new DocRuntimeException(cause);
+                }
+            }
+            return okay;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DocRuntimeException(ex);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static boolean collectFileCopies(File sourceDir, File destDir, List<File[]> files)
+    {
+        if (! destDir.exists()) {
+            destDir.mkdirs();
+        }
+        String[] fnames = sourceDir.list();
+        if (fnames == null) {
+            return false;
+        }
+        for (int i=0; i < fnames.length; i++) {
+            File sourceChild = new File(sourceDir, fnames[i]);
+            File destChild = new File(destDir, fnames[i]);
+            if (sourceChild.isDirectory()) {
+                if (! collectFileCopies(sourceChild, destChild, files)) {
+                    return false;
+                }
+            } else {
+                files.add(new File[] { sourceChild, destChild });
+            }
+        }
+        return true;
+    }
+
     public static boolean fileCopy(File sourceFile, File destFile, boolean overwrite)
     {
         if (destFile.exists()) {
@@ -73,14 +151,16 @@ public class DocmaUtil
         }
         try {
             FileInputStream fin = new FileInputStream(sourceFile);
-            FileOutputStream fout = new FileOutputStream(destFile);
-            byte[] buf = new byte[4096];
-            int cnt;
-            while((cnt = fin.read(buf)) >= 0) {
-                fout.write(buf, 0, cnt);
+            try {
+                FileOutputStream fout = new FileOutputStream(destFile);
+                try {
+                    transferFile(fin.getChannel(), fout.getChannel());
+                } finally {
+                    fout.close();
+                }
+            } finally {
+                fin.close();
             }
-            fin.close();
-            fout.close();
             return true;
         } catch(Exception ex) {
             throw new DocRuntimeException(ex);
@@ -89,7 +169,13 @@ public class DocmaUtil
 
     public static void copyStream(InputStream in, OutputStream out) throws IOException
     {
-        byte[] buf = new byte[64*1024];
+        if ((in instanceof FileInputStream) && (out instanceof FileOutputStream)) {
+            // Let the operating system copy the data
+            transferFile(((FileInputStream) in).getChannel(), 
+                         ((FileOutputStream) out).getChannel());
+            return;
+        }
+        byte[] buf = new byte[COPY_BUFFER_SIZE];
         int cnt;
         while ((cnt = in.read(buf)) >= 0) {
             if (cnt > 0) out.write(buf, 0, cnt);
@@ -97,6 +183,88 @@ public class DocmaUtil
         // in.close();
     }
 
+    /**
+     * Copies all remaining bytes from the input channel to the output channel.
+     * If one of the channels is a file channel, the transfer is done by 
+     * FileChannel.transferTo() or transferFrom(). Otherwise a buffer is 
+     * used. The channels are not closed.
+     */
+    public static void copyChannel(ReadableByteChannel in, WritableByteChannel out) throws IOException
+    {
+        if (in instanceof FileChannel) {
+            transferFile((FileChannel) in, out);
+            return;
+        }
+        if (out instanceof FileChannel) {
+            FileChannel fout = (FileChannel) out;
+            long pos = fout.position();
+            long cnt;
+            while ((cnt = fout.transferFrom(in, pos, COPY_BUFFER_SIZE)) > 0) {
+                pos += cnt;
+            }
+            fout.position(pos);
+            // transferFrom() returns 0 for non-blocking channels without 
+            // available data and at end of stream; continue with buffer copy.
+        }
+        copyBuffered(in, out);
+    }
+
+    /**
+     * Transfers the bytes from the current position to the end of the
+     * input file. The position of the input channel is moved to the end.
+     * Special files, like pipes or files in /proc, are not seekable or 
+     * report size 0. These files are copied with a buffer. The buffer copy
+     * is also used for the remaining bytes, if transferTo() stops before 
+     * the reported size has been reached.
+     */
+    private static void transferFile(FileChannel in, WritableByteChannel out) throws IOException
+    {
+        long pos;
+        long size;
+        try {
+            pos = in.position();
+            size = in.size();
+        } catch (IOException ex) {   // not seekable, e.g. a pipe
+            copyBuffered(in, out);
+            return;
+        }
+        if (size == 0) {   // empty or special file
+            copyBuffered(in, out);
+            return;
+        }
+        while (pos < size) {
+            long cnt = in.transferTo(pos, size - pos, out);
+            if (cnt <= 0) {
+                break;   // e.g. non-blocking output channel or truncated file
+            }
+            pos += cnt;
+        }
+        in.position(pos);
+        if (pos < size) {
+            copyBuffered(in, out);
+        }
+    }
+
+    private static void copyBuffered(ReadableByteChannel in, WritableByteChannel out) throws IOException
+    {
+        ByteBuffer buf = directBuffers.poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        }
+        try {
+            while (in.read(buf) >= 0) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                buf.clear();
+            }
+        } finally {
+            buf.clear();
+            directBuffers.offer(buf);
+        }
+    }
+
     public static String concatStrings(List str_list, String sep)
     {
         StringBuilder buf = new StringBuilder();
@@ -200,11 +368,7 @@ public class DocmaUtil
     {
         FileOutputStream fout = new FileOutputStream(fileout, false);
         try {
-            byte[] buf = new byte[64 * 1024];
-            int cnt;
-            while ((cnt = in.read(buf)) >= 0) {
-                fout.write(buf, 0, cnt);
-            }
+            copyStream(in, fout);
         } finally {
             try { fout.close(); } catch (Exception ex) {}
         }
@@ -240,6 +404,27 @@ public class DocmaUtil
         }
     }
     
+    /**
+     * Same as {@link #checkWellFormedXML(String)}, but reads the XML from
+     * the given reader. The reader is not closed.
+     */
+    public static void checkWellFormedXML(Reader xml) throws Exception
+    {
+        XMLStreamParser parser = new XMLStreamParser(xml);
+        int res = parser.next();
+        if (parser.hasTextBefore()) {
+            throw new Exception((res == XMLParser.FINISHED ? "String does not contain well-formed XML: "
+                                                           : "String does not start with XML tag: ") + 
+                                parser.getTextBefore());
+        }
+        while (res != XMLParser.FINISHED) {
+            res = parser.next();
+        }
+        if (parser.hasTextBefore()) {
+            throw new Exception("String is not well-formed XML: " + parser.getTextBefore());
+        }
+    }
+    
     public static String extractStringStart(String str, int maxlen) 
     {
         if (str.length() <= maxlen) {
@@ -0,0 +1,518 @@
+/*
+ * ParallelZipWriter.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.util;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Writes a ZIP archive, where the entries are compressed concurrently by a
+ * pool of worker threads. The compressed entries are written to the target
+ * stream in the order in which they have been added.
+ * Note that <code>ZipOutputStream</code> cannot be used for this purpose,
+ * because it does not accept compressed data. Therefore the ZIP format
+ * (including the ZIP64 extensions for large archives) is written by this class.
+ * Compressed entries that exceed a size threshold are buffered in temporary
+ * files instead of memory.
+ *
+ * @author MP
+ */
+public class ParallelZipWriter implements Closeable
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int MAX_MEMORY_ENTRY = 4 * 1024 * 1024;
+
+    private final CountingOutputStream out;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final LinkedList<Future<EntryData>> pending = new LinkedList<Future<EntryData>>();
+    private final List<EntryData> written = new ArrayList<EntryData>();
+    // Temporary files that have not been disposed yet
+    private final Set<File> tempFiles = Collections.synchronizedSet(new HashSet<File>());
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private boolean storeCompressed = true;
+    private boolean finished = false;
+
+
+    /**
+     * Creates a writer that compresses the entries with the given number of
+     * threads. The target stream is not closed by this writer.
+     *
+     * @param out  the target stream
+     * @param maxThreads  the number of compression threads
+     */
+    public ParallelZipWriter(OutputStream out, int maxThreads)
+    {
+        this.out = new CountingOutputStream(new BufferedOutputStream(out, 64*1024));
+        this.executor = Executors.newFixedThreadPool(Math.max(1, maxThreads), new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "docma-zip-" + (++count));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.maxPending = 2 * Math.max(1, maxThreads);
+    }
+
+    /* --------------  Public methods  ---------------------- */
+
+    public void setLevel(int level)
+    {
+        this.level = level;
+    }
+
+    /**
+     * If set to true (default), files that are already compressed (see
+     * <code>ZipUtil.isCompressedFormat()</code>) are stored without compression.
+     */
+    public void setStoreCompressed(boolean storeCompressed)
+    {
+        this.storeCompressed = storeCompressed;
+    }
+
+    /**
+     * Adds all files of the given directory (recursively) with the given
+     * path prefix.
+     */
+    public void addDirectory(File dir, String path) throws IOException
+    {
+        if ((path.length() > 0) && !path.endsWith("/")) {
+            path += "/";
+        }
+        File[] childs = dir.listFiles();
+        if (childs == null) {
+            throw new IOException("Cannot list directory: " + dir);
+        }
+        for (File child : childs) {
+            if (child.isDirectory()) {
+                addDirectory(child, path + child.getName() + "/");
+            } else if (child.isFile()) {
+                addFile(child, path + child.getName());
+            }
+        }
+    }
+
+    /**
+     * Queues the given file for compression. Entries that have been
+     * compressed before are written to the target stream.
+     * Throws a <code>ZipException</code> if the UTF-8 encoded entry name 
+     * exceeds 65535 bytes.
+     */
+    public void addFile(final File file, final String entryName) throws IOException
+    {
+        if (finished) {
+            throw new IOException("ZIP archive has already been finished.");
+        }
+        if (entryName.getBytes(UTF8).length > 0xFFFF) {
+            throw new ZipException("ZIP entry name too long: " + entryName.substring(0, 80) + "...");
+        }
+        final boolean store = storeCompressed && ZipUtil.isCompressedFormat(entryName);
+        final int lvl = level;
+        pending.add(executor.submit(new Callable<EntryData>() {
+            public EntryData call() throws IOException {
+                return compress(file, entryName, store, lvl, tempFiles);
+            }
+        }));
+        while (pending.size() > maxPending) {
+            writeEntry(pending.removeFirst());
+        }
+    }
+
+    /**
+     * Writes the remaining entries and the central directory.
+     * The target stream is flushed, but not closed.
+     */
+    public void finish() throws IOException
+    {
+        if (finished) {
+            return;
+        }
+        boolean okay = false;
+        try {
+            while (! pending.isEmpty()) {
+                writeEntry(pending.removeFirst());
+            }
+            writeCentralDirectory();
+            out.flush();
+            okay = true;
+        } finally {
+            if (okay) {
+                finished = true;
+                executor.shutdown();
+            } else {
+                abort();
+            }
+        }
+    }
+
+    /**
+     * Discards all pending entries, stops the compression threads and 
+     * deletes the temporary files. The ZIP archive is incomplete. 
+     * Has no effect if the archive has already been finished.
+     */
+    public void abort()
+    {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        for (Future<EntryData> f : pending) {
+            f.cancel(true);
+        }
+        pending.clear();
+        executor.shutdownNow();
+        try {
+            // Running tasks may still create temporary files
+            executor.awaitTermination(60, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        // Results of cancelled tasks cannot be retrieved from their futures;
+        // therefore the temporary files are tracked separately.
+        File[] files;
+        synchronized (tempFiles) {
+            files = tempFiles.toArray(new File[tempFiles.size()]);
+            tempFiles.clear();
+        }
+        for (File f : files) {
+            if (! f.delete()) {
+                f.deleteOnExit();
+            }
+        }
+    }
+
+    public void close() throws IOException
+    {
+        finish();
+    }
+
+    /* --------------  Private methods  ---------------------- */
+
+    private static EntryData compress(File file, String entryName, boolean store, int level,
+                                      Set<File> tempFiles)
+    throws IOException
+    {
+        EntryData ed = new EntryData(entryName, store ? ZipEntry.STORED : ZipEntry.DEFLATED,
+                                     file.lastModified());
+        if (store) {
+            // Data is copied from the source file when the entry is written
+            ed.sourceFile = file;
+            ed.size = file.length();
+            ed.compressedSize = ed.size;
+            ed.crc = ZipUtil.computeCrc(file);
+            return ed;
+        }
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(level, true);
+        OutputStream target = null;
+        try {
+            ByteArrayOutputStream bout = null;
+            if (file.length() > MAX_MEMORY_ENTRY) {
+                ed.tempFile = File.createTempFile("docmazip", ".tmp");
+                tempFiles.add(ed.tempFile);
+                target = new FileOutputStream(ed.tempFile);
+            } else {
+                bout = new ByteArrayOutputStream((int) Math.max(32, file.length() / 2));
+                target = bout;
+            }
+            CountingOutputStream cout = new CountingOutputStream(target);
+            DeflaterOutputStream dout = new DeflaterOutputStream(cout, deflater, 64*1024);
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buf = new byte[64*1024];
+                int cnt;
+                while ((cnt = in.read(buf)) >= 0) {
+                    crc.update(buf, 0, cnt);
+                    dout.write(buf, 0, cnt);
+                    ed.size += cnt;
+                }
+            } finally {
+                in.close();
+            }
+            dout.finish();
+            target.close();
+            target = null;
+            ed.crc = crc.getValue();
+            ed.compressedSize = cout.getCount();
+            if (bout != null) {
+                ed.data = bout.toByteArray();
+            }
+            return ed;
+        } catch (IOException ex) {
+            if (target != null) {
+                try { target.close(); } catch (Exception ex2) {}
+            }
+            dispose(ed, tempFiles);
+            throw ex;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void dispose(EntryData ed, Set<File> tempFiles)
+    {
+        if (ed.tempFile != null) {
+            tempFiles.remove(ed.tempFile);
+        }
+        ed.dispose();
+    }
+
+    private void writeEntry(Future<EntryData> future) throws IOException
+    {
+        EntryData ed;
+        try {
+            ed = future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("ZIP creation interrupted.");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+        try {
+            ed.offset = out.getCount();
+            writeLocalHeader(ed);
+            if (ed.data != null) {
+                out.write(ed.data);
+            } else {
+                File f = (ed.tempFile != null) ? ed.tempFile : ed.sourceFile;
+                // The source file of a STORED entry is read again. The data 
+                // has to match the CRC in the local header.
+                CRC32 crc = (ed.tempFile != null) ? null : new CRC32();
+                InputStream in = new FileInputStream(f);
+                try {
+                    long cnt = copy(in, out, crc);
+                    if ((cnt != ed.compressedSize) || ((crc != null) && (crc.getValue() != ed.crc))) {
+                        throw new IOException("File has been modified during ZIP creation: " + f);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            written.add(ed);
+        } finally {
+            dispose(ed, tempFiles);
+        }
+    }
+
+    /**
+     * Copies the input to the output. If crc is not null, the CRC of the
+     * copied data is calculated.
+     */
+    private static long copy(InputStream in, OutputStream out, CRC32 crc) throws IOException
+    {
+        byte[] buf = new byte[64*1024];
+        long total = 0;
+        int cnt;
+        while ((cnt = in.read(buf)) >= 0) {
+            if (crc != null) {
+                crc.update(buf, 0, cnt);
+            }
+            out.write(buf, 0, cnt);
+            total += cnt;
+        }
+        return total;
+    }
+
+    private void writeLocalHeader(EntryData ed) throws IOException
+    {
+        boolean zip64 = (ed.size >= ZIP64_MAGIC) || (ed.compressedSize >= ZIP64_MAGIC);
+        writeInt(0x04034b50L);
+        writeShort(zip64 ? 45 : 20);      // version needed to extract
+        writeShort(0x0800);               // UTF-8 file names
+        writeShort(ed.method);
+        writeInt(ed.dosTime);
+        writeInt(ed.crc);
+        writeInt(zip64 ? ZIP64_MAGIC : ed.compressedSize);
+        writeInt(zip64 ? ZIP64_MAGIC : ed.size);
+        writeShort(ed.name.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(ed.name);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(ed.size);
+            writeLong(ed.compressedSize);
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException
+    {
+        long cdOffset = out.getCount();
+        for (EntryData ed : written) {
+            boolean size64 = (ed.size >= ZIP64_MAGIC) || (ed.compressedSize >= ZIP64_MAGIC);
+            boolean offset64 = (ed.offset >= ZIP64_MAGIC);
+            int extraLen = (size64 || offset64) ? (4 + (size64 ? 16 : 0) + (offset64 ? 8 : 0)) : 0;
+            int version = (extraLen > 0) ? 45 : 20;
+            writeInt(0x02014b50L);
+            writeShort(version);              // version made by
+            writeShort(version);              // version needed to extract
+            writeShort(0x0800);
+            writeShort(ed.method);
+            writeInt(ed.dosTime);
+            writeInt(ed.crc);
+            writeInt(size64 ? ZIP64_MAGIC : ed.compressedSize);
+            writeInt(size64 ? ZIP64_MAGIC : ed.size);
+            writeShort(ed.name.length);
+            writeShort(extraLen);
+            writeShort(0);                    // comment length
+            writeShort(0);                    // disk number
+            writeShort(0);                    // internal attributes
+            writeInt(0);                      // external attributes
+            writeInt(offset64 ? ZIP64_MAGIC : ed.offset);
+            out.write(ed.name);
+            if (extraLen > 0) {
+                writeShort(0x0001);
+                writeShort(extraLen - 4);
+                if (size64) {
+                    writeLong(ed.size);
+                    writeLong(ed.compressedSize);
+                }
+                if (offset64) {
+                    writeLong(ed.offset);
+                }
+            }
+        }
+        long cdEnd = out.getCount();
+        long cdSize = cdEnd - cdOffset;
+        int count = written.size();
+        boolean zip64 = (count >= 0xFFFF) || (cdSize >= ZIP64_MAGIC) || (cdOffset >= ZIP64_MAGIC);
+        if (zip64) {
+            // ZIP64 end of central directory record
+            writeInt(0x06064b50L);
+            writeLong(44);
+            writeShort(45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(cdSize);
+            writeLong(cdOffset);
+            // ZIP64 end of central directory locator
+            writeInt(0x07064b50L);
+            writeInt(0);
+            writeLong(cdEnd);
+            writeInt(1);
+        }
+        writeInt(0x06054b50L);
+        writeShort(0);
+        writeShort(0);
+        writeShort(zip64 ? 0xFFFF : count);
+        writeShort(zip64 ? 0xFFFF : count);
+        writeInt(zip64 ? ZIP64_MAGIC : cdSize);
+        writeInt(zip64 ? ZIP64_MAGIC : cdOffset);
+        writeShort(0);                        // comment length
+    }
+
+    private void writeShort(int v) throws IOException
+    {
+        out.write(v & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+    }
+
+    private void writeInt(long v) throws IOException
+    {
+        writeShort((int) (v & 0xFFFF));
+        writeShort((int) ((v >>> 16) & 0xFFFF));
+    }
+
+    private void writeLong(long v) throws IOException
+    {
+        writeInt(v & 0xFFFFFFFFL);
+        writeInt(v >>> 32);
+    }
+
+    private static long toDosTime(long millis)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(millis);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);   // 1980-01-01
+        }
+        return ((long) (year - 1980) << 25) |
+               ((long) (cal.get(Calendar.MONTH) + 1) << 21) |
+               ((long) cal.get(Calendar.DAY_OF_MONTH) << 16) |
+               ((long) cal.get(Calendar.HOUR_OF_DAY) << 11) |
+               ((long) cal.get(Calendar.MINUTE) << 5) |
+               ((long) cal.get(Calendar.SECOND) >> 1);
+    }
+
+    /* --------------  Inner classes  ---------------------- */
+
+    private static class EntryData
+    {
+        final byte[] name;
+        final int method;
+        final long dosTime;
+        long crc;
+        long size = 0;
+        long compressedSize = 0;
+        long offset = 0;
+        byte[] data = null;        // compressed data in memory
+        File tempFile = null;      // compressed data in temporary file
+        File sourceFile = null;    // uncompressed data (STORED)
+
+        EntryData(String name, int method, long lastModified)
+        {
+            this.name = name.getBytes(UTF8);
+            this.method = method;
+            this.dosTime = toDosTime(lastModified);
+        }
+
+        void dispose()
+        {
+            data = null;
+            if ((tempFile != null) && !tempFile.delete()) {
+                tempFile.deleteOnExit();
+            }
+            tempFile = null;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount()
+        {
+            return count;
+        }
+    }
+}
@@ -17,6 +17,17 @@ package org.docma.util;
 import java.util.*;
 
 /**
+ * Simple pull parser for XML strings.
+ * <p>
+ * Element names and attributes of start tags are recorded as character
+ * offsets into the input string. Strings are only created on request,
+ * e.g. by {@link #getElementName()} or {@link #getAttributeValue(int)}.
+ * Scanning a document with the offset-based methods (e.g.
+ * {@link #elementNameEquals(String, boolean)},
+ * {@link #getAttributeIndex(String, boolean)} and
+ * {@link #attributeValueEquals(int, String)}) does not allocate objects
+ * per tag.
+ * </p>
  *
  * @author MP
  */
@@ -35,10 +46,11 @@ public class XMLParser
     private int maxOffset;
     private int startOffset;
     private int endOffset;
-    private String elementName;
+    private String elementName;     // materialized lazily
+    private int nameStart;          // -1 if the name is not part of the input
+    private int nameEnd;
     private boolean isEmptyElem;
-    private List<String> attNames = null;
-    private List<String> attValues = null;
+    private final AttributeRegions attRegions = new AttributeRegions();
 
     private boolean skipComments = true;
     private boolean skipPIs = true;
@@ -90,7 +102,7 @@ public class XMLParser
                     if (comment_end < 0) createException("Missing end of comment!");
                     cursorPos = comment_end + COMMENT_END.length();  // skip comment
                     if (skipComments) continue;
-                    elementName = COMMENT_START;
+                    setElementName(COMMENT_START);
                     startOffset = tag_start;
                     endOffset = comment_end + COMMENT_END.length();
                     nextType = COMMENT;
@@ -103,7 +115,7 @@ public class XMLParser
                     if (cd_end < 0) createException("Missing end of CDATA!");
                     cursorPos = cd_end + CDATA_END.length();  // skip CDATA
                     if (skipCDATA) continue;
-                    elementName = CDATA_START;
+                    setElementName(CDATA_START);
                     startOffset = tag_start;
                     endOffset = cd_end + CDATA_END.length();
                     nextType = CDATA;
@@ -127,7 +139,7 @@ public class XMLParser
                 if (pi_end < 0) createException("Missing '?>'");
                 cursorPos = pi_end + 2;  // skip processing instruction / xml declaration
                 if (skipPIs) continue;
-                elementName = "<?";
+                setElementName("<?");
                 startOffset = tag_start;
                 endOffset = pi_end + 2;
                 nextType = PROCESSING_INSTRUCTION;
@@ -138,7 +150,11 @@ public class XMLParser
             if (next_ch == '/') {
                 int tag_end = xml.indexOf('>', name_start);
                 if (tag_end < 0) createException("Invalid closing tag!");
-                elementName = xml.substring(name_start + 1, tag_end).trim();
+                int n_start = name_start + 1;
+                int n_end = tag_end;
+                while ((n_start < n_end) && Character.isWhitespace(xml.charAt(n_start))) n_start++;
+                while ((n_end > n_start) && Character.isWhitespace(xml.charAt(n_end - 1))) n_end--;
+                setElementName(n_start, n_end);
                 startOffset = tag_start;
                 endOffset = tag_end + 1;
                 cursorPos = endOffset;
@@ -155,9 +171,8 @@ public class XMLParser
                 if (Character.isWhitespace(ch)) break;
                 name_end++;
             }
-            elementName = xml.substring(name_start, name_end);
-            initAttributes();
-            int tag_end = parseTagAttributes(xml, name_end, attNames, attValues);
+            setElementName(name_start, name_end);
+            int tag_end = scanTagAttributes(xml, name_end, attRegions);
             if (tag_end < 0) createException("Invalid element attributes!");
             isEmptyElem = (xml.charAt(tag_end - 1) == '/');
             startOffset = tag_start;
@@ -171,9 +186,41 @@ public class XMLParser
 
     public String getElementName()
     {
+        if ((elementName == null) && (nameStart >= 0)) {
+            elementName = xml.substring(nameStart, nameEnd);
+        }
         return elementName;
     }
 
+    /**
+     * Returns true, if the name of the current element is equal to the
+     * given name. In contrast to <code>getElementName().equals(name)</code>
+     * no string is created.
+     */
+    public boolean elementNameEquals(String name, boolean ignoreCase)
+    {
+        if (nameStart < 0) {
+            return ignoreCase ? name.equalsIgnoreCase(elementName) : name.equals(elementName);
+        }
+        int len = nameEnd - nameStart;
+        return (len == name.length()) && xml.regionMatches(ignoreCase, nameStart, name, 0, len);
+    }
+
+    /**
+     * Returns the offset of the first character of the element name,
+     * or -1 if the current token is a comment, CDATA section or processing
+     * instruction.
+     */
+    public int getElementNameStart()
+    {
+        return nameStart;
+    }
+
+    public int getElementNameEnd()
+    {
+        return nameEnd;
+    }
+
     public boolean isEmptyElement()
     {
         return isEmptyElem;
@@ -184,8 +231,10 @@ public class XMLParser
         if (nextType == START_ELEMENT) {
             names.clear();
             values.clear();
-            names.addAll(attNames);
-            values.addAll(attValues);
+            for (int i = 0; i < attRegions.count; i++) {
+                names.add(getAttributeName(i));
+                values.add(getAttributeValue(i));
+            }
         }
     }
 
@@ -201,8 +250,8 @@ public class XMLParser
     {
         if (nextType == START_ELEMENT) {
             attMap.clear();
-            for (int i = 0; i < attNames.size(); i++) {
-                attMap.put(attNames.get(i), attValues.get(i));
+            for (int i = 0; i < attRegions.count; i++) {
+                attMap.put(getAttributeName(i), getAttributeValue(i));
             }
         }
     }
@@ -211,10 +260,115 @@ public class XMLParser
     {
         if (nextType == START_ELEMENT) {
             attMap.clear();
-            for (int i = 0; i < attNames.size(); i++) {
-                attMap.put(attNames.get(i).toLowerCase(), attValues.get(i));
+            for (int i = 0; i < attRegions.count; i++) {
+                attMap.put(getAttributeName(i).toLowerCase(), getAttributeValue(i));
+            }
+        }
+    }
+
+    /* --------------  Offset-based attribute access  ---------------------- */
+
+    /**
+     * Returns the number of attributes of the current start tag, or 0 if
+     * the current token is not a start tag.
+     */
+    public int getAttributeCount()
+    {
+        return (nextType == START_ELEMENT) ? attRegions.count : 0;
+    }
+
+    public int getAttributeNameStart(int idx)
+    {
+        return attRegions.get(idx, 0);
+    }
+
+    public int getAttributeNameEnd(int idx)
+    {
+        return attRegions.get(idx, 1);
+    }
+
+    /**
+     * Returns the offset of the first character of the attribute value,
+     * i.e. the character after the opening quote.
+     */
+    public int getAttributeValueStart(int idx)
+    {
+        return attRegions.get(idx, 2);
+    }
+
+    /**
+     * Returns the offset of the closing quote of the attribute value.
+     */
+    public int getAttributeValueEnd(int idx)
+    {
+        return attRegions.get(idx, 3);
+    }
+
+    public String getAttributeName(int idx)
+    {
+        return xml.substring(getAttributeNameStart(idx), getAttributeNameEnd(idx));
+    }
+
+    /**
+     * Returns the attribute value as written in the input, i.e. entities
+     * are not resolved.
+     */
+    public String getAttributeValue(int idx)
+    {
+        return xml.substring(getAttributeValueStart(idx), getAttributeValueEnd(idx));
+    }
+
+    /**
+     * Returns the index of the attribute with the given name, or -1 if
+     * the current start tag has no such attribute.
+     */
+    public int getAttributeIndex(String name, boolean ignoreCase)
+    {
+        int cnt = getAttributeCount();
+        for (int i = 0; i < cnt; i++) {
+            if (attributeNameEquals(i, name, ignoreCase)) {
+                return i;
             }
         }
+        return -1;
+    }
+
+    public boolean attributeNameEquals(int idx, String name, boolean ignoreCase)
+    {
+        int start = getAttributeNameStart(idx);
+        int len = getAttributeNameEnd(idx) - start;
+        return (len == name.length()) && xml.regionMatches(ignoreCase, start, name, 0, len);
+    }
+
+    public boolean attributeValueEquals(int idx, String value)
+    {
+        int start = getAttributeValueStart(idx);
+        int len = getAttributeValueEnd(idx) - start;
+        return (len == value.length()) && xml.regionMatches(start, value, 0, len);
+    }
+
+    /**
+     * Returns true, if the whitespace separated list of tokens in the
+     * attribute value contains the given token, e.g. if the
+     * <code>class</code> attribute contains a given class name.
+     */
+    public boolean attributeValueContainsToken(int idx, String token)
+    {
+        int len = token.length();
+        if (len == 0) {
+            return false;
+        }
+        int pos = getAttributeValueStart(idx);
+        int end = getAttributeValueEnd(idx);
+        while (pos < end) {
+            while ((pos < end) && Character.isWhitespace(xml.charAt(pos))) pos++;
+            int tok_start = pos;
+            while ((pos < end) && !Character.isWhitespace(xml.charAt(pos))) pos++;
+            if (((pos - tok_start) == len) && xml.regionMatches(tok_start, token, 0, len)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public int getStartOffset()
@@ -241,8 +395,7 @@ public class XMLParser
             if (eventType == FINISHED) {
                 break;
             }
-            String tagName = getElementName();
-            if ((tagName == null) || !tagName.equalsIgnoreCase(elemName)) {
+            if (! elementNameEquals(elemName, true)) {
                 continue;  // ignore any other elements
             }
             if (eventType == START_ELEMENT) {
@@ -262,6 +415,28 @@ public class XMLParser
     /* --------------  Public static methods  ---------------------- */
 
     public static int parseTagAttributes(CharSequence seq, int offset, List nameList, List valueList)
+    {
+        AttributeRegions regions = new AttributeRegions();
+        int res = scanTagAttributes(seq, offset, regions);
+        nameList.clear();
+        valueList.clear();
+        for (int i = 0; i < regions.count; i++) {
+            nameList.add(seq.subSequence(regions.get(i, 0), regions.get(i, 1)).toString());
+            valueList.add(seq.subSequence(regions.get(i, 2), regions.get(i, 3)).toString());
+        }
+        return res;
+    }
+
+    /* --------------  Package local methods  ---------------------- */
+
+    /**
+     * Scans the attributes of a start tag and stores the offsets of the
+     * attribute names and values in <code>regions</code>. Returns the
+     * position of the '&gt;' character or a negative value, if the
+     * attributes have invalid syntax. Does not create any objects, 
+     * unless <code>regions</code> has to be enlarged.
+     */
+    static int scanTagAttributes(CharSequence seq, int offset, AttributeRegions regions)
     {
         final int SEARCH_NAME_START = 1;
         final int SEARCH_EQUALS = 2;
@@ -271,12 +446,11 @@ public class XMLParser
 
         if (offset < 0) throw new RuntimeException("Negative offset in ParseTagAttributes()");
 
-        nameList.clear();
-        valueList.clear();
+        regions.clear();
         int state = SEARCH_NAME_START;
         int len = seq.length();
-        String name = null;
         int name_start = -1;
+        int name_end = -1;
         int value_start = -1;
         char quote_char = '"';
         while (offset < len) {
@@ -301,6 +475,7 @@ public class XMLParser
             } else
             if (state == SEARCH_EQUALS) {
                 boolean was_whitespace = false;
+                int ws_start = offset;
                 while (Character.isWhitespace(ch)) {  // on first whitespace: skip remaining whitespace
                     was_whitespace = true;
                     if (++offset < len) {
@@ -310,7 +485,7 @@ public class XMLParser
                     }
                 }
                 if (ch == '=') {
-                    name = seq.subSequence(name_start, offset).toString().trim();
+                    name_end = ws_start;
                     state = SEARCH_VALUE_START;
                 } else
                 if (was_whitespace) {
@@ -331,10 +506,7 @@ public class XMLParser
             } else
             if (state == SEARCH_VALUE_END) {
                 if (ch == quote_char) {
-                    String value = seq.subSequence(value_start, offset).toString();
-                    // attribs.put(name, value);
-                    nameList.add(name);
-                    valueList.add(value);
+                    regions.add(name_start, name_end, value_start, offset);
                     state = SEARCH_NAME_START;
                 } else 
                 if (ch == '<') {  // is not allowed in attribute value; has to be escaped as &lt;
@@ -350,12 +522,18 @@ public class XMLParser
 
     /* --------------  Private methods  ---------------------- */
 
-    private void initAttributes()
+    private void setElementName(String name)
     {
-        if (attNames == null) {
-            attNames = new ArrayList<String>(16);
-            attValues = new ArrayList<String>(16);
-        }
+        elementName = name;
+        nameStart = -1;
+        nameEnd = -1;
+    }
+
+    private void setElementName(int start, int end)
+    {
+        elementName = null;
+        nameStart = start;
+        nameEnd = end;
     }
 
     private void createException(String msg) throws XMLParseException
@@ -363,4 +541,48 @@ public class XMLParser
         throw new XMLParseException("XML parse error at character position " + cursorPos + ": " + msg);
     }
 
+    /* --------------  Inner classes  ---------------------- */
+
+    /**
+     * Offsets of the attribute names and values of a start tag. Each
+     * attribute is stored as 4 consecutive values: name start, name end,
+     * value start and value end.
+     */
+    static final class AttributeRegions
+    {
+        private int[] offsets = new int[4*8];
+        private int count = 0;
+
+        void clear()
+        {
+            count = 0;
+        }
+
+        int size()
+        {
+            return count;
+        }
+
+        void add(int nameStart, int nameEnd, int valueStart, int valueEnd)
+        {
+            int pos = count * 4;
+            if (pos + 4 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[pos] = nameStart;
+            offsets[pos + 1] = nameEnd;
+            offsets[pos + 2] = valueStart;
+            offsets[pos + 3] = valueEnd;
+            count++;
+        }
+
+        int get(int idx, int field)
+        {
+            if ((idx < 0) || (idx >= count)) {
+                throw new IndexOutOfBoundsException("Attribute index: " + idx);
+            }
+            return offsets[idx * 4 + field];
+        }
+    }
+
 }
@@ -0,0 +1,340 @@
+/*
+ * XMLRewriteRules.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.util;
+
+import java.util.*;
+
+/**
+ * Set of rules for rewriting XML content. Rules are registered for an
+ * element name, or for all elements. The rules are compiled into an
+ * {@link XMLRewriter}, which applies all rules in a single pass over the
+ * content. If several rules are registered for the same element, the rules
+ * are applied in the order of registration, i.e. each rule sees the
+ * changes of the previous rules.
+ * <p>
+ * Example:
+ * </p>
+ * <pre>
+ *   XMLRewriter rewriter = new XMLRewriteRules()
+ *       .addCSSClass("img", "figure")
+ *       .removeCSSClass("p", "draft")
+ *       .setAttribute("table", "border", "0")
+ *       .compile();
+ *   String result = rewriter.rewrite(content);
+ * </pre>
+ *
+ * @author MP
+ */
+public class XMLRewriteRules
+{
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private boolean ignoreElementCase = true;
+    private boolean ignoreAttributeCase = true;
+    private boolean checkWellformed = true;
+
+
+    public XMLRewriteRules()
+    {
+    }
+
+    /* --------------  Rule registration  ---------------------- */
+
+    /**
+     * Adds the given CSS class to the <code>class</code> attribute of all
+     * elements with the given name, if not already contained.
+     */
+    public XMLRewriteRules addCSSClass(String elementName, String cssCls)
+    {
+        if ((cssCls != null) && !cssCls.equals("")) {
+            addHandler(elementName, new AddCSSClsHandler(cssCls));
+        }
+        return this;
+    }
+
+    /**
+     * Removes the given CSS class from the <code>class</code> attribute of
+     * all elements with the given name. If no class remains, the
+     * <code>class</code> attribute is removed.
+     */
+    public XMLRewriteRules removeCSSClass(String elementName, String cssCls)
+    {
+        if ((cssCls != null) && !cssCls.equals("")) {
+            addHandler(elementName, new RemoveCSSClsHandler(cssCls));
+        }
+        return this;
+    }
+
+    /**
+     * Sets an attribute of all elements with the given name.
+     * If <code>value</code> is <code>null</code>, the attribute is removed.
+     */
+    public XMLRewriteRules setAttribute(String elementName, String attName, String value)
+    {
+        return addHandler(elementName, new SetAttributeHandler(attName, value));
+    }
+
+    public XMLRewriteRules removeAttribute(String elementName, String attName)
+    {
+        return setAttribute(elementName, attName, null);
+    }
+
+    public XMLRewriteRules replaceElementContent(String elementName, String content)
+    {
+        return addHandler(elementName, new ReplaceContentHandler(content));
+    }
+
+    public XMLRewriteRules replaceElement(String elementName, String xml)
+    {
+        return addHandler(elementName, new ReplaceElementHandler(xml));
+    }
+
+    /**
+     * Registers a custom handler. If <code>elementName</code> is
+     * <code>null</code>, the handler is invoked for all elements.
+     * Note that the handler instance is shared by all threads that use the
+     * compiled rules, i.e. the handler has to be thread-safe.
+     */
+    public XMLRewriteRules addHandler(String elementName, XMLElementHandler handler)
+    {
+        if (handler == null) {
+            throw new IllegalArgumentException("Handler must not be null.");
+        }
+        if ((elementName != null) && elementName.equals("")) {
+            throw new IllegalArgumentException("Element name must not be empty.");
+        }
+        rules.add(new Rule(elementName, handler));
+        return this;
+    }
+
+    public boolean isEmpty()
+    {
+        return rules.isEmpty();
+    }
+
+    /* --------------  Processing options  ---------------------- */
+
+    public boolean isIgnoreElementCase()
+    {
+        return ignoreElementCase;
+    }
+
+    public void setIgnoreElementCase(boolean ignore)
+    {
+        ignoreElementCase = ignore;
+    }
+
+    public boolean isIgnoreAttributeCase()
+    {
+        return ignoreAttributeCase;
+    }
+
+    public void setIgnoreAttributeCase(boolean ignore)
+    {
+        ignoreAttributeCase = ignore;
+    }
+
+    public boolean isCheckWellformed()
+    {
+        return checkWellformed;
+    }
+
+    public void setCheckWellformed(boolean enable)
+    {
+        checkWellformed = enable;
+    }
+
+    /* --------------  Compilation  ---------------------- */
+
+    /**
+     * Creates an immutable rewriter from the current rules. Later changes
+     * of this rule set do not affect the returned rewriter.
+     */
+    public XMLRewriter compile()
+    {
+        // Rules for all elements
+        List<XMLElementHandler> global = new ArrayList<XMLElementHandler>();
+        for (Rule r : rules) {
+            if (r.elementKey == null) {
+                global.add(r.handler);
+            }
+        }
+        // Rules for specific elements, in order of registration
+        Map<String, List<XMLElementHandler>> byElement = new LinkedHashMap<String, List<XMLElementHandler>>();
+        for (Rule r : rules) {
+            if (r.elementKey != null) {
+                String key = ignoreElementCase ? r.elementKey.toLowerCase() : r.elementKey;
+                if (! byElement.containsKey(key)) {
+                    byElement.put(key, new ArrayList<XMLElementHandler>());
+                }
+            }
+        }
+        for (Map.Entry<String, List<XMLElementHandler>> e : byElement.entrySet()) {
+            for (Rule r : rules) {
+                if ((r.elementKey == null) || r.matches(e.getKey(), ignoreElementCase)) {
+                    e.getValue().add(r.handler);
+                }
+            }
+        }
+
+        Map<String, XMLElementHandler> handlers = new HashMap<String, XMLElementHandler>();
+        for (Map.Entry<String, List<XMLElementHandler>> e : byElement.entrySet()) {
+            handlers.put(e.getKey(), combine(e.getValue()));
+        }
+        XMLElementHandler defaultHandler = global.isEmpty() ? null : combine(global);
+        return new XMLRewriter(handlers, defaultHandler, ignoreElementCase,
+                               ignoreAttributeCase, checkWellformed);
+    }
+
+    /* --------------  Private methods  ---------------------- */
+
+    private static XMLElementHandler combine(List<XMLElementHandler> list)
+    {
+        if (list.size() == 1) {
+            return list.get(0);
+        }
+        return new CompositeHandler(list.toArray(new XMLElementHandler[list.size()]));
+    }
+
+    /* --------------  Inner classes  ---------------------- */
+
+    private static class Rule
+    {
+        final String elementKey;
+        final XMLElementHandler handler;
+
+        Rule(String elementKey, XMLElementHandler handler)
+        {
+            this.elementKey = elementKey;
+            this.handler = handler;
+        }
+
+        boolean matches(String key, boolean ignoreCase)
+        {
+            return ignoreCase ? elementKey.equalsIgnoreCase(key) : elementKey.equals(key);
+        }
+    }
+
+    private static class CompositeHandler implements XMLElementHandler
+    {
+        private final XMLElementHandler[] handlers;
+
+        CompositeHandler(XMLElementHandler[] handlers)
+        {
+            this.handlers = handlers;
+        }
+
+        public void processElement(XMLElementContext ctx)
+        {
+            for (XMLElementHandler h : handlers) {
+                h.processElement(ctx);
+            }
+        }
+    }
+
+    private static class AddCSSClsHandler implements XMLElementHandler
+    {
+        private final String cssCls;
+
+        AddCSSClsHandler(String cssCls)
+        {
+            this.cssCls = cssCls;
+        }
+
+        public void processElement(XMLElementContext elemCtx)
+        {
+            String clsVal = elemCtx.getAttributeValue("class");
+            if (clsVal == null) {
+                elemCtx.setAttribute("class", cssCls);
+            } else {
+                clsVal = clsVal.trim();
+                if (! (" " + clsVal + " ").contains(" " + cssCls + " ")) {
+                    elemCtx.setAttribute("class", clsVal + " " + cssCls);
+                }
+            }
+        }
+    }
+
+    private static class RemoveCSSClsHandler implements XMLElementHandler
+    {
+        private final String cssCls;
+
+        RemoveCSSClsHandler(String cssCls)
+        {
+            this.cssCls = cssCls;
+        }
+
+        public void processElement(XMLElementContext elemCtx)
+        {
+            String clsVal = elemCtx.getAttributeValue("class");
+            if (clsVal != null) {
+                clsVal = clsVal.trim();
+                String clsNew = (" " + clsVal + " ").replace(" " + cssCls + " ", " ").trim();
+                if (! clsVal.equals(clsNew)) {
+                    elemCtx.setAttribute("class", clsNew.equals("") ? null : clsNew);
+                }
+            }
+        }
+    }
+
+    private static class SetAttributeHandler implements XMLElementHandler
+    {
+        private final String attName;
+        private final String value;
+
+        SetAttributeHandler(String attName, String value)
+        {
+            this.attName = attName;
+            this.value = value;
+        }
+
+        public void processElement(XMLElementContext elemCtx)
+        {
+            String old = elemCtx.getAttributeValue(attName);
+            if ((old == null) ? (value != null) : !old.equals(value)) {
+                elemCtx.setAttribute(attName, value);
+            }
+        }
+    }
+
+    private static class ReplaceContentHandler implements XMLElementHandler
+    {
+        private final String content;
+
+        ReplaceContentHandler(String content)
+        {
+            this.content = content;
+        }
+
+        public void processElement(XMLElementContext elemCtx)
+        {
+            elemCtx.replaceElementContent(content);
+        }
+    }
+
+    private static class ReplaceElementHandler implements XMLElementHandler
+    {
+        private final String xml;
+
+        ReplaceElementHandler(String xml)
+        {
+            this.xml = xml;
+        }
+
+        public void processElement(XMLElementContext elemCtx)
+        {
+            elemCtx.replaceElement(xml);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * XMLRewriter.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.util;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compiled set of XML rewrite rules, as created by
+ * {@link XMLRewriteRules#compile()}. All rules are applied in a single
+ * pass of an {@link XMLProcessor}. Instances are immutable and can be
+ * used by several threads concurrently.
+ *
+ * @author MP
+ */
+public final class XMLRewriter
+{
+    private final Map<String, XMLElementHandler> handlers;
+    private final XMLElementHandler defaultHandler;
+    private final boolean ignoreElementCase;
+    private final boolean ignoreAttributeCase;
+    private final boolean checkWellformed;
+
+
+    XMLRewriter(Map<String, XMLElementHandler> handlers,
+                XMLElementHandler defaultHandler,
+                boolean ignoreElementCase,
+                boolean ignoreAttributeCase,
+                boolean checkWellformed)
+    {
+        this.handlers = Collections.unmodifiableMap(handlers);
+        this.defaultHandler = defaultHandler;
+        this.ignoreElementCase = ignoreElementCase;
+        this.ignoreAttributeCase = ignoreAttributeCase;
+        this.checkWellformed = checkWellformed;
+    }
+
+    /**
+     * Returns true, if no rules are defined, i.e. the content is not
+     * changed by this rewriter.
+     */
+    public boolean isEmpty()
+    {
+        return handlers.isEmpty() && (defaultHandler == null);
+    }
+
+    public String rewrite(String content) throws XMLParseException
+    {
+        if (isEmpty()) {
+            return content;   // content is unchanged
+        }
+        StringBuilder out = new StringBuilder(content.length() + 256);
+        try {
+            rewrite(content, out);
+        } catch (IOException ex) {   // is never thrown by StringBuilder
+            throw new XMLParseException(ex);
+        }
+        return out.toString();
+    }
+
+    public void rewrite(String content, Appendable out) throws XMLParseException, IOException
+    {
+        if (isEmpty()) {
+            out.append(content);
+            return;
+        }
+        XMLProcessor xmlproc = XMLProcessorFactory.newInstance();
+        xmlproc.setCheckWellformed(checkWellformed);
+        xmlproc.setIgnoreElementCase(ignoreElementCase);
+        xmlproc.setIgnoreAttributeCase(ignoreAttributeCase);
+        for (Map.Entry<String, XMLElementHandler> e : handlers.entrySet()) {
+            xmlproc.setElementHandler(e.getKey(), e.getValue());
+        }
+        if (defaultHandler != null) {
+            xmlproc.setElementHandler(defaultHandler);
+        }
+        xmlproc.process(content, out);
+    }
+}
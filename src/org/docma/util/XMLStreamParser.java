@@ -0,0 +1,503 @@
+/*
+ * XMLStreamParser.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Streaming variant of {@link XMLParser}. The input is read from a
+ * <code>Reader</code> into a sliding buffer, which only holds the
+ * current tag (or comment/CDATA section). Character data between tags
+ * is discarded. This allows to scan large XML content without loading the
+ * complete content into a string.
+ * <p>
+ * The method {@link #next()} returns the same event types as
+ * {@link XMLParser#next()}. Offsets are character positions relative to
+ * the start of the stream.
+ * </p>
+ *
+ * @author MP
+ */
+public class XMLStreamParser implements Closeable
+{
+    private static final int INITIAL_BUFFER_SIZE = 8*1024;
+    private static final int MAX_TEXT_EXCERPT = 60;
+
+    private static final int FINISHED = XMLParser.FINISHED;
+    private static final int START_ELEMENT = XMLParser.START_ELEMENT;
+    private static final int END_ELEMENT = XMLParser.END_ELEMENT;
+    private static final int COMMENT = XMLParser.COMMENT;
+    private static final int PROCESSING_INSTRUCTION = XMLParser.PROCESSING_INSTRUCTION;
+    private static final int CDATA = XMLParser.CDATA;
+
+    private static final String DOCTYPE_START = "<!DOCTYPE";
+    private static final String COMMENT_START = "<!--";
+    private static final String COMMENT_END = "-->";
+    private static final String CDATA_START = "<![CDATA[";
+    private static final String CDATA_END = "]]>";
+
+    private final Reader reader;
+    private char[] buf = new char[INITIAL_BUFFER_SIZE];
+    private int bufLen = 0;         // number of valid characters in buf
+    private long bufOffset = 0;     // stream position of buf[0]
+    private int cursorPos = 0;      // buffer position
+    private boolean eof = false;
+    private final BufferSequence bufSeq = new BufferSequence();
+
+    private int nextType;
+    private long startOffset;
+    private long endOffset;
+    private String elementName;
+    private boolean isEmptyElem;
+    private boolean textBefore = false;
+    private final StringBuilder textExcerpt = new StringBuilder(MAX_TEXT_EXCERPT);
+    private boolean textTruncated = false;
+    private final XMLParser.AttributeRegions attRegions = new XMLParser.AttributeRegions();
+
+    private boolean skipComments = true;
+    private boolean skipPIs = true;
+    private boolean skipCDATA = true;
+
+
+    public XMLStreamParser(Reader reader)
+    {
+        this.reader = reader;
+        this.isEmptyElem = false;
+    }
+
+    public XMLStreamParser(Reader reader, boolean skipComments, boolean skipPIs, boolean skipCDATA)
+    {
+        this(reader);
+        this.skipComments = skipComments;
+        this.skipPIs = skipPIs;
+        this.skipCDATA = skipCDATA;
+    }
+
+    public XMLStreamParser(InputStream in, String charsetName) throws UnsupportedEncodingException
+    {
+        this(new InputStreamReader(in, charsetName));
+    }
+
+    public int next() throws XMLParseException, IOException
+    {
+        textBefore = false;
+        textExcerpt.setLength(0);
+        textTruncated = false;
+        while (true) {
+            if (! skipToTagStart()) {
+                nextType = FINISHED;
+                return nextType;
+            }
+            // The tag starts at buffer position 0
+            if (! ensure(2)) createException("Unexpected end of input!");
+            char next_ch = buf[1];
+
+            if (next_ch == '!') {
+                // XML comment
+                if (startsWith(COMMENT_START)) {
+                    int comment_end = find(COMMENT_END, COMMENT_START.length());
+                    if (comment_end < 0) createException("Missing end of comment!");
+                    cursorPos = comment_end + COMMENT_END.length();  // skip comment
+                    if (skipComments) continue;
+                    return setToken(COMMENT, COMMENT_START);
+                }
+                // CDATA
+                if (startsWith(CDATA_START)) {
+                    int cd_end = find(CDATA_END, CDATA_START.length());
+                    if (cd_end < 0) createException("Missing end of CDATA!");
+                    cursorPos = cd_end + CDATA_END.length();  // skip CDATA
+                    if (skipCDATA) continue;
+                    return setToken(CDATA, CDATA_START);
+                }
+                // DOCTYPE
+                if (startsWith(DOCTYPE_START)) {
+                    int dt_end = find(">", 1);
+                    if (dt_end < 0) createException("Missing end of DOCTYPE!");
+                    cursorPos = dt_end + 1;  // skip DOCTYPE
+                    continue;
+                }
+                createException("Unexpected position of character sequence '<!'");
+            }
+
+            // Processing instruction or xml declaration <?xml ...?>
+            if (next_ch == '?') {
+                int pi_end = find("?>", 2);
+                if (pi_end < 0) createException("Missing '?>'");
+                cursorPos = pi_end + 2;  // skip processing instruction / xml declaration
+                if (skipPIs) continue;
+                return setToken(PROCESSING_INSTRUCTION, "<?");
+            }
+
+            // Closing tag
+            if (next_ch == '/') {
+                int tag_end = find(">", 2);
+                if (tag_end < 0) createException("Invalid closing tag!");
+                cursorPos = tag_end + 1;
+                return setToken(END_ELEMENT, new String(buf, 2, tag_end - 2).trim());
+            }
+
+            // Opening tag
+            int name_end = 1;
+            while (true) {
+                if ((name_end >= bufLen) && !fill()) createException("Unexpected end of input!");
+                char ch = buf[name_end];
+                if ((ch == '>') || (ch == '/') || Character.isWhitespace(ch)) break;
+                name_end++;
+            }
+            int tag_end;
+            while (true) {
+                tag_end = XMLParser.scanTagAttributes(bufSeq, name_end, attRegions);
+                // A negative value at the end of the buffer means that
+                // the tag is incomplete.
+                if ((tag_end >= 0) || (-tag_end < bufLen) || !fill()) break;
+            }
+            if (tag_end < 0) createException("Invalid element attributes!");
+            isEmptyElem = (buf[tag_end - 1] == '/');
+            cursorPos = tag_end + 1;
+            return setToken(START_ELEMENT, new String(buf, 1, name_end - 1));
+        }
+    }
+
+    public String getElementName()
+    {
+        return elementName;
+    }
+
+    public boolean isEmptyElement()
+    {
+        return isEmptyElem;
+    }
+
+    /**
+     * Returns true, if non-whitespace character data precedes the current
+     * token, i.e. exists between the previously returned token and the
+     * current token. If <code>next()</code> returned
+     * <code>XMLParser.FINISHED</code>, this is the character data after
+     * the last token.
+     */
+    public boolean hasTextBefore()
+    {
+        return textBefore;
+    }
+
+    /**
+     * Returns the start of the character data that precedes the current
+     * token, beginning with the first non-whitespace character, or null if 
+     * {@link #hasTextBefore()} returns false. The text is cut after 60 
+     * characters, as by <code>DocmaUtil.extractStringStart()</code>.
+     */
+    public String getTextBefore()
+    {
+        if (! textBefore) {
+            return null;
+        }
+        if (textTruncated) {
+            return textExcerpt.toString() + "...";
+        }
+        int len = textExcerpt.length();
+        while (Character.isWhitespace(textExcerpt.charAt(len - 1))) len--;
+        return textExcerpt.substring(0, len);
+    }
+
+    /**
+     * Returns the number of attributes of the current start tag, or 0 if
+     * the current token is not a start tag.
+     */
+    public int getAttributeCount()
+    {
+        return (nextType == START_ELEMENT) ? attRegions.size() : 0;
+    }
+
+    public String getAttributeName(int idx)
+    {
+        int start = attRegions.get(idx, 0);
+        return new String(buf, start, attRegions.get(idx, 1) - start);
+    }
+
+    /**
+     * Returns the attribute value as written in the input, i.e. entities
+     * are not resolved.
+     */
+    public String getAttributeValue(int idx)
+    {
+        int start = attRegions.get(idx, 2);
+        return new String(buf, start, attRegions.get(idx, 3) - start);
+    }
+
+    public void getAttributes(List<? super String> names, List<? super String> values)
+    {
+        if (nextType == START_ELEMENT) {
+            names.clear();
+            values.clear();
+            for (int i = 0; i < attRegions.size(); i++) {
+                names.add(getAttributeName(i));
+                values.add(getAttributeValue(i));
+            }
+        }
+    }
+
+    public void getAttributesLower(List<? super String> names, List<? super String> values)
+    {
+        getAttributes(names, values);
+        for (int i = 0; i < names.size(); i++) {
+            names.set(i, names.get(i).toString().toLowerCase());
+        }
+    }
+
+    public void getAttributes(Map<String, String> attMap)
+    {
+        if (nextType == START_ELEMENT) {
+            attMap.clear();
+            for (int i = 0; i < attRegions.size(); i++) {
+                attMap.put(getAttributeName(i), getAttributeValue(i));
+            }
+        }
+    }
+
+    public void getAttributesLower(Map<String, String> attMap)
+    {
+        if (nextType == START_ELEMENT) {
+            attMap.clear();
+            for (int i = 0; i < attRegions.size(); i++) {
+                attMap.put(getAttributeName(i).toLowerCase(), getAttributeValue(i));
+            }
+        }
+    }
+
+    /**
+     * Returns the content of the current comment, CDATA section or
+     * processing instruction, including the delimiters.
+     */
+    public String getTokenText()
+    {
+        if ((nextType == COMMENT) || (nextType == CDATA) || (nextType == PROCESSING_INSTRUCTION)) {
+            return new String(buf, 0, (int) (endOffset - startOffset));
+        }
+        return null;
+    }
+
+    public long getStartOffset()
+    {
+        return startOffset;
+    }
+
+    public long getEndOffset()
+    {
+        return endOffset;
+    }
+
+    public int readUntilCorrespondingClosingTag() throws XMLParseException, IOException
+    {
+        if (nextType != START_ELEMENT) {
+            throw new XMLParseException("Invalid call of XMLStreamParser.readUntilCorrespondingClosingTag()");
+        }
+        if (isEmptyElement()) return nextType;
+        String elemName = getElementName();  // element name of opening tag
+        int eventType;
+        int level = 0;
+        while (true) {
+            eventType = next();
+            if (eventType == FINISHED) {
+                break;
+            }
+            String tagName = getElementName();
+            if ((tagName == null) || !tagName.equalsIgnoreCase(elemName)) {
+                continue;  // ignore any other elements
+            }
+            if (eventType == START_ELEMENT) {
+                if (! isEmptyElement()) ++level;
+            } else
+            if (eventType == END_ELEMENT) {
+                if (level == 0) {
+                    return eventType;  // matching end tag was found
+                }
+                --level;
+            }
+        }
+        createException("Could not find matching end-tag for element " + elemName);
+        return nextType;  // is never reached
+    }
+
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+
+    /* --------------  Private methods  ---------------------- */
+
+    private int setToken(int type, String name)
+    {
+        elementName = name;
+        startOffset = bufOffset;
+        endOffset = bufOffset + cursorPos;
+        nextType = type;
+        return nextType;
+    }
+
+    /**
+     * Discards all characters up to the next '&lt;' character.
+     * Returns false, if the end of the input has been reached.
+     */
+    private boolean skipToTagStart() throws IOException
+    {
+        while (true) {
+            for (int i = cursorPos; i < bufLen; i++) {
+                char ch = buf[i];
+                if (ch == '<') {
+                    cursorPos = i;
+                    discard(i);
+                    return true;
+                }
+                if (textBefore) {
+                    if (! textTruncated) addTextExcerpt(ch);
+                } else if (! Character.isWhitespace(ch)) {
+                    textBefore = true;
+                    addTextExcerpt(ch);
+                }
+            }
+            cursorPos = bufLen;
+            discard(bufLen);
+            if (! fill()) {
+                return false;
+            }
+        }
+    }
+
+    private void addTextExcerpt(char ch)
+    {
+        if (textExcerpt.length() < MAX_TEXT_EXCERPT) {
+            textExcerpt.append(ch);
+        } else if (! Character.isWhitespace(ch)) {
+            textTruncated = true;
+        }
+    }
+
+    /**
+     * Removes the characters before the given buffer position.
+     */
+    private void discard(int pos)
+    {
+        if (pos > 0) {
+            int remaining = bufLen - pos;
+            if (remaining > 0) {
+                System.arraycopy(buf, pos, buf, 0, remaining);
+            }
+            bufLen = remaining;
+            bufOffset += pos;
+            cursorPos -= pos;
+        }
+    }
+
+    /**
+     * Reads further characters into the buffer. The buffer is enlarged,
+     * if it is full. Returns false, if the end of the input has been
+     * reached.
+     */
+    private boolean fill() throws IOException
+    {
+        if (eof) {
+            return false;
+        }
+        if (bufLen == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        int cnt;
+        do {
+            cnt = reader.read(buf, bufLen, buf.length - bufLen);
+        } while (cnt == 0);
+        if (cnt < 0) {
+            eof = true;
+            return false;
+        }
+        bufLen += cnt;
+        return true;
+    }
+
+    private boolean ensure(int len) throws IOException
+    {
+        while (bufLen < len) {
+            if (! fill()) return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(String str) throws IOException
+    {
+        int len = str.length();
+        if (! ensure(len)) return false;
+        for (int i = 0; i < len; i++) {
+            if (buf[i] != str.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the buffer position of the given string, or -1 if the string
+     * is not contained in the remaining input.
+     */
+    private int find(String str, int fromPos) throws IOException
+    {
+        final char first = str.charAt(0);
+        final int len = str.length();
+        int pos = fromPos;
+        while (true) {
+            int last = bufLen - len;
+            outer:
+            for (int i = pos; i <= last; i++) {
+                if (buf[i] != first) continue;
+                for (int k = 1; k < len; k++) {
+                    if (buf[i + k] != str.charAt(k)) continue outer;
+                }
+                return i;
+            }
+            pos = Math.max(fromPos, last + 1);
+            if (! fill()) return -1;
+        }
+    }
+
+    private void createException(String msg) throws XMLParseException
+    {
+        throw new XMLParseException("XML parse error at character position " + (bufOffset + cursorPos) + ": " + msg);
+    }
+
+    /* --------------  Inner classes  ---------------------- */
+
+    /**
+     * View of the valid characters in the buffer.
+     */
+    private class BufferSequence implements CharSequence
+    {
+        public int length()
+        {
+            return bufLen;
+        }
+
+        public char charAt(int index)
+        {
+            return buf[index];
+        }
+
+        public CharSequence subSequence(int start, int end)
+        {
+            return new String(buf, start, end - start);
+        }
+
+        public String toString()
+        {
+            return new String(buf, 0, bufLen);
+        }
+    }
+}
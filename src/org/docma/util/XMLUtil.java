@@ -19,11 +19,17 @@ package org.docma.util;
 
 import java.io.StringReader;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.regex.Pattern;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathFactory;
+import org.docma.coreapi.DocXML;
 import org.w3c.dom.*;
 import org.xml.sax.InputSource;
 
@@ -33,36 +39,171 @@ import org.xml.sax.InputSource;
  */
 public class XMLUtil 
 {
-    private static XPathFactory xpathFactory = null;
+    public static final int DEFAULT_XPATH_CACHE_SIZE = 256;
 
+    private static final int MAX_POOLED = 8;   // instances per pool
+
+    private static volatile int xpathCacheSize = DEFAULT_XPATH_CACHE_SIZE;
+
+    // XPathFactory, XPath, XPathExpression and DocumentBuilder instances 
+    // are not thread-safe. Therefore instances are taken from shared pools 
+    // for the time of use. The pools are bounded, i.e. instances that 
+    // exceed the pool size are left to the garbage collector.
+    private static final BlockingQueue<XPath> xpathPool = 
+        new ArrayBlockingQueue<XPath>(MAX_POOLED);
+    private static final BlockingQueue<DocumentBuilder> builderPool = 
+        new ArrayBlockingQueue<DocumentBuilder>(MAX_POOLED);
+    // Pools of compiled expressions. Holds at most xpathCacheSize 
+    // expressions (least recently used are removed).
+    private static final Map<String, BlockingQueue<XPathExpression>> expressionPools = 
+        new LinkedHashMap<String, BlockingQueue<XPathExpression>>(64, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, BlockingQueue<XPathExpression>> eldest) {
+                return size() > xpathCacheSize;
+            }
+        };
+
+    /**
+     * Compiles the given expression. The returned instance is not cached,
+     * i.e. it can be kept by the caller. Note that the returned
+     * instance must not be used by several threads concurrently.
+     */
     public static XPathExpression compileXPath(String expression) throws Exception 
     {
-        if (xpathFactory == null) initXPath();
-        
-        XPath xpath = xpathFactory.newXPath();
-        return xpath.compile(expression);
+        XPath xpath = xpathPool.poll();
+        if (xpath == null) {
+            xpath = XPathFactory.newInstance().newXPath();
+        }
+        try {
+            return xpath.compile(expression);
+        } finally {
+            xpath.reset();
+            xpathPool.offer(xpath);
+        }
+    }
+
+    /**
+     * Sets the maximum number of expressions for which compiled instances 
+     * are kept for reuse by <code>evalXPath</code>. 
+     * The value 0 disables the reuse of compiled expressions.
+     */
+    public static void setXPathCacheSize(int size) 
+    {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative cache size: " + size);
+        }
+        synchronized (expressionPools) {
+            xpathCacheSize = size;
+            if (expressionPools.size() > size) {
+                expressionPools.clear();
+            }
+        }
+    }
+
+    public static int getXPathCacheSize() 
+    {
+        return xpathCacheSize;
+    }
+
+    /**
+     * Removes all pooled XPath and DocumentBuilder instances.
+     */
+    public static void clearXPathCache() 
+    {
+        synchronized (expressionPools) {
+            expressionPools.clear();
+        }
+        xpathPool.clear();
+        builderPool.clear();
+    }
+
+    /**
+     * Parses the given string into a DOM document. The returned document
+     * can be passed to the <code>evalXPath</code> methods, to evaluate
+     * several expressions without parsing the string again.
+     */
+    public static Document parseXML(String xml) throws Exception 
+    {
+        DocumentBuilder builder = builderPool.poll();
+        if (builder == null) {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            builder = factory.newDocumentBuilder();
+        }
+        try {
+            return builder.parse(new InputSource(new StringReader(xml)));
+        } finally {
+            builder.reset();
+            builderPool.offer(builder);
+        }
     }
 
     public static boolean evalXPathToBoolean(String xml, String xpath) throws Exception 
     {
-        XPathExpression xe = compileXPath(xpath);
-        Object res = xe.evaluate(new InputSource(new StringReader(xml)), XPathConstants.BOOLEAN);
+        return evalXPathToBoolean(parseXML(xml), xpath);
+    }
+
+    public static boolean evalXPathToBoolean(Node node, String xpath) throws Exception 
+    {
+        Object res = evalXPath(node, xpath, XPathConstants.BOOLEAN);
         return Boolean.TRUE.equals(res);
     }
 
+    /**
+     * Evaluates the expression on the DOM of the given node.
+     */
+    public static boolean evalXPathToBoolean(DocXML xml, String xpath) throws Exception 
+    {
+        return evalXPathToBoolean(xml.getContentDOM(), xpath);
+    }
+
+    /**
+     * Evaluates the expression on the given DOM node. The compiled 
+     * expression is taken from a shared pool, if available.
+     *
+     * @param node  the context node
+     * @param xpath  the XPath expression
+     * @param returnType  one of the types defined in 
+     *                    <code>javax.xml.xpath.XPathConstants</code>
+     * @return  the result of the evaluation
+     */
+    public static Object evalXPath(Node node, String xpath, QName returnType) throws Exception 
+    {
+        BlockingQueue<XPathExpression> pool = getExpressionPool(xpath);
+        XPathExpression xe = (pool == null) ? null : pool.poll();
+        if (xe == null) {
+            xe = compileXPath(xpath);
+        }
+        try {
+            return xe.evaluate(node, returnType);
+        } finally {
+            if (pool != null) {
+                pool.offer(xe);
+            }
+        }
+    }
+
+    private static BlockingQueue<XPathExpression> getExpressionPool(String xpath)
+    {
+        synchronized (expressionPools) {
+            if (xpathCacheSize == 0) {
+                return null;
+            }
+            BlockingQueue<XPathExpression> pool = expressionPools.get(xpath);
+            if (pool == null) {
+                pool = new ArrayBlockingQueue<XPathExpression>(MAX_POOLED);
+                expressionPools.put(xpath, pool);
+            }
+            return pool;
+        }
+    }
+
     public static String addCSSClass(String content, String elementName, String cssCls) throws Exception
     {
         if ((cssCls == null) || cssCls.equals("") || (elementName == null) || elementName.equals("")) {
             return content;   // content is unchanged
         }
         
-        XMLProcessor xmlproc = XMLProcessorFactory.newInstance();
-        xmlproc.setCheckWellformed(true);
-        xmlproc.setIgnoreElementCase(true);
-        xmlproc.setElementHandler(elementName, new AddCSSClsHandler(elementName, cssCls));
-        StringBuilder out = new StringBuilder();
-        xmlproc.process(content, out);
-        return out.toString();
+        return new XMLRewriteRules().addCSSClass(elementName, cssCls).compile().rewrite(content);
     }
 
     public static String removeCSSClass(String content, String elementName, String cssCls) throws Exception
@@ -72,13 +213,7 @@ public class XMLUtil
             return content;   // content is unchanged
         }
         
-        XMLProcessor xmlproc = XMLProcessorFactory.newInstance();
-        xmlproc.setCheckWellformed(true);
-        xmlproc.setIgnoreElementCase(true);
-        xmlproc.setElementHandler(elementName, new RemoveCSSClsHandler(elementName, cssCls));
-        StringBuilder out = new StringBuilder();
-        xmlproc.process(content, out);
-        return out.toString();
+        return new XMLRewriteRules().removeCSSClass(elementName, cssCls).compile().rewrite(content);
     }
     
     public static boolean attributeValueExists(String xml, 
@@ -88,22 +223,20 @@ public class XMLUtil
     {
         Pattern valpattern = null;
         XMLParser parser = new XMLParser(xml);
-        List<String> attnames = new ArrayList<String>();
-        List<String> attvalues = new ArrayList<String>();
         int res;
         do {
             res = parser.next();
             if (res == XMLParser.START_ELEMENT) {
-                if ((elementName != null) && elementName.equalsIgnoreCase(parser.getElementName())) {
-                    parser.getAttributes(attnames, attvalues);
-                    for (int i=0; i < attnames.size(); i++) {
-                        String nm = attnames.get(i);
-                        if (nm.equalsIgnoreCase(attributeName)) {
+                if ((elementName != null) && parser.elementNameEquals(elementName, true)) {
+                    int cnt = parser.getAttributeCount();
+                    for (int i=0; i < cnt; i++) {
+                        if (parser.attributeNameEquals(i, attributeName, true)) {
                             if (valpattern == null) {
                                 valpattern = Pattern.compile(regex);
                             }
-                            String val = attvalues.get(i);
-                            if ((val != null) && valpattern.matcher(val).matches()) {
+                            int start = parser.getAttributeValueStart(i);
+                            int end = parser.getAttributeValueEnd(i);
+                            if (valpattern.matcher(xml).region(start, end).matches()) {
                                 return true;
                             }
                         }
@@ -168,78 +301,4 @@ public class XMLUtil
         return value.replace("<", "&lt;").replace(">", "&gt;");
     }
 
-    
-    /* --------------  Private methods  ---------------------- */
-    
-    private static synchronized void initXPath() 
-    {
-        if (xpathFactory == null) {
-            xpathFactory = XPathFactory.newInstance();
-        }
-    }
-
-
-    //
-    // Private Helper classes 
-    // 
-    
-    private static class AddCSSClsHandler implements XMLElementHandler
-    {
-        private String elementName;
-        private String cssCls;
-        
-        public AddCSSClsHandler(String elemName, String cssCls)
-        {
-            this.elementName = elemName;
-            this.cssCls = cssCls;
-        }
-        
-        public void processElement(XMLElementContext elemCtx) 
-        {
-            String ename = elemCtx.getElementName();
-            if (! ename.equalsIgnoreCase(elementName)) {
-                return;   // do nothing
-            }
-            
-            String clsVal = elemCtx.getAttributeValue("class");
-            if (clsVal == null) {
-                elemCtx.setAttribute("class", cssCls);
-            } else {
-                clsVal = clsVal.trim();
-                if (! (" " + clsVal + " ").contains(" " + cssCls + " ")) {
-                    elemCtx.setAttribute("class", clsVal + " " + cssCls);
-                }
-            }
-        }
-    }
-
-    private static class RemoveCSSClsHandler implements XMLElementHandler
-    {
-        private String elementName;
-        private String cssCls;
-        
-        public RemoveCSSClsHandler(String elemName, String cssCls)
-        {
-            this.elementName = elemName;
-            this.cssCls = cssCls;
-        }
-        
-        public void processElement(XMLElementContext elemCtx) 
-        {
-            String ename = elemCtx.getElementName();
-            if (! ename.equalsIgnoreCase(elementName)) {
-                return;   // do nothing
-            }
-            
-            String clsVal = elemCtx.getAttributeValue("class");
-            if (clsVal != null) {
-                clsVal = clsVal.trim();
-                String clsNew = (" " + clsVal + " ").replace(" " + cssCls + " ", " ").trim();
-                if (! clsVal.equals(clsNew)) {
-                    elemCtx.setAttribute("class", clsNew.equals("") ? null : clsNew);
-                }
-            }
-        }
-    }
-
 }
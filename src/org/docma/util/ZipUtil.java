@@ -15,14 +15,57 @@
 package org.docma.util;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 
+import org.docma.coreapi.ProgressCallback;
+
 /**
  *
  * @author MP
  */
 public class ZipUtil
 {
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+        "jpg", "jpeg", "png", "gif", "zip", "gz", "tgz", "bz2", "7z", "rar", "jar", "war",
+        "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub", "mp3", "mp4", "avi", "mov", "webp"));
+
+    /**
+     * Returns true if the file with the given name is in a compressed format 
+     * (determined by the file extension). Such files are not compressed 
+     * again when added to a ZIP file in store mode.
+     */
+    public static boolean isCompressedFormat(String filename)
+    {
+        int pos = filename.lastIndexOf('.');
+        if ((pos < 0) || (filename.lastIndexOf('/') > pos)) {
+            return false;
+        }
+        return COMPRESSED_EXTENSIONS.contains(filename.substring(pos + 1).toLowerCase());
+    }
+
+    /**
+     * Writes a ZIP file containing all files of the given directory. 
+     * The files are compressed concurrently by the given number of threads.
+     * Files in a compressed format are stored without compression.
+     * The output stream is not closed.
+     */
+    public static void writeDirectoryToZip(OutputStream out, File dir, int maxThreads) throws IOException
+    {
+        ParallelZipWriter writer = new ParallelZipWriter(out, maxThreads);
+        boolean okay = false;
+        try {
+            writer.addDirectory(dir, "");
+            writer.finish();
+            okay = true;
+        } finally {
+            if (! okay) {
+                writer.abort();   // discard pending entries and stop threads
+            }
+        }
+    }
 
     public static void extractZipStream(InputStream in, File extractDir) throws Exception
     {
@@ -35,10 +78,11 @@ public class ZipUtil
             wrapped = true;
         }
 
+        String base_path = getBasePath(extractDir);
         ZipEntry entry;
         while ((entry = zip_in.getNextEntry()) != null) {
             String entry_name = entry.getName();
-            File out_file = new File(extractDir, entry_name);
+            File out_file = getEntryFile(extractDir, base_path, entry_name);
             if (entry.isDirectory()) {
                 if (! out_file.exists()) out_file.mkdirs();
             } else {
@@ -57,12 +101,111 @@ public class ZipUtil
         }
     }
 
+    /**
+     * Extracts the given ZIP file. The entries are read from the central 
+     * directory of the ZIP file and are extracted concurrently by the given 
+     * number of threads. Entries with a path outside of extractDir are 
+     * rejected before any file is written. If progress is not null, then 
+     * one step is reported for each extracted entry and the cancel flag 
+     * is checked.
+     */
+    public static void extractZipFile(File zipFile, final File extractDir, int maxThreads, 
+                                      ProgressCallback progress) throws IOException
+    {
+        final ZipFile zip = new ZipFile(zipFile);
+        ExecutorService executor = null;
+        try {
+            // Validate all paths and create directories before extraction.
+            // If several entries are extracted to the same file, only the
+            // last entry is extracted (as by extractZipStream), because
+            // the entries are written concurrently.
+            String base_path = getBasePath(extractDir);
+            Map<File, ZipEntry> file_entries = new LinkedHashMap<File, ZipEntry>();
+            Set<File> dirs = new HashSet<File>();
+            Enumeration<? extends ZipEntry> en = zip.entries();
+            while (en.hasMoreElements()) {
+                ZipEntry entry = en.nextElement();
+                File out_file = getEntryFile(extractDir, base_path, entry.getName());
+                if (entry.isDirectory()) {
+                    dirs.add(out_file);
+                } else {
+                    dirs.add(out_file.getParentFile());
+                    file_entries.remove(out_file);   // keep order of last entry
+                    file_entries.put(out_file, entry);
+                }
+            }
+            List<ZipEntry> files = new ArrayList<ZipEntry>(file_entries.values());
+            List<File> out_files = new ArrayList<File>(file_entries.keySet());
+            for (File dir : dirs) {
+                if (! (dir.isDirectory() || dir.mkdirs())) {
+                    throw new IOException("Could not create directory: " + dir);
+                }
+            }
+            
+            if (progress != null) {
+                progress.startWork(files.size());
+            }
+            try {
+                executor = Executors.newFixedThreadPool(Math.max(1, maxThreads));
+                CompletionService<File> completion = new ExecutorCompletionService<File>(executor);
+                for (int i = 0; i < files.size(); i++) {
+                    final ZipEntry entry = files.get(i);
+                    final File out_file = out_files.get(i);
+                    completion.submit(new Callable<File>() {
+                        public File call() throws IOException {
+                            extractEntry(zip, entry, out_file);
+                            return out_file;
+                        }
+                    });
+                }
+                for (int i = 0; i < files.size(); i++) {
+                    getResult(completion.take());
+                    if (progress != null) {
+                        progress.stepFinished();
+                        if (progress.getCancelFlag()) {
+                            throw new InterruptedIOException("ZIP extraction canceled by user.");
+                        }
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("ZIP extraction interrupted.");
+            } finally {
+                if (progress != null) {
+                    progress.finishWork();
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+                try {
+                    // Wait for running tasks before the ZIP file is closed
+                    executor.awaitTermination(60, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            zip.close();
+        }
+    }
+
     public static void addDirectoryToZip(ZipOutputStream zipout, File dir) throws IOException
     {
         addDirectoryToZip(zipout, dir, "");
     }
 
     public static void addDirectoryToZip(ZipOutputStream zipout, File dir, String path) throws IOException
+    {
+        addDirectoryToZip(zipout, dir, path, false);
+    }
+
+    /**
+     * Adds all files of the given directory to the ZIP stream. 
+     * If storeCompressed is true, then files in a compressed format 
+     * (see isCompressedFormat()) are added without compression.
+     */
+    public static void addDirectoryToZip(ZipOutputStream zipout, File dir, String path, boolean storeCompressed) 
+    throws IOException
     {
         if (path.length() > 0) {
             if (!path.endsWith("/")) {
@@ -72,7 +215,7 @@ public class ZipUtil
         }
         File[] childs = dir.listFiles();
         for (int i=0; i < childs.length; i++) {
-            addZipEntry(zipout, childs[i], path);
+            addZipEntry(zipout, childs[i], path, storeCompressed);
         }
     }
     
@@ -94,7 +237,7 @@ public class ZipUtil
         zipout.closeEntry();
     }
 
-    private static void addZipEntry(ZipOutputStream zipout, File node, String path)
+    private static void addZipEntry(ZipOutputStream zipout, File node, String path, boolean storeCompressed)
     throws IOException
     {
         if (node.isDirectory()) {
@@ -104,7 +247,7 @@ public class ZipUtil
             // addDirectoryEntry(zipout, newpath);
             File[] childs = node.listFiles();
             for (int i=0; i < childs.length; i++) {
-                addZipEntry(zipout, childs[i], newpath);
+                addZipEntry(zipout, childs[i], newpath, storeCompressed);
             }
         } else
         if (node.isFile()) {
@@ -112,6 +255,13 @@ public class ZipUtil
             // File f = new File(path, nodefn);
             String filename = path + nodefn; // f.getPath();
             ZipEntry ze = new ZipEntry(filename);
+            if (storeCompressed && isCompressedFormat(nodefn)) {
+                // Size and CRC have to be known before data is written
+                ze.setMethod(ZipEntry.STORED);
+                ze.setSize(node.length());
+                ze.setCompressedSize(node.length());
+                ze.setCrc(computeCrc(node));
+            }
             zipout.putNextEntry(ze);
             // Daten an zipout senden
             InputStream in = new FileInputStream(node);
@@ -121,6 +271,82 @@ public class ZipUtil
         }
     }
 
+    private static String getBasePath(File extractDir) throws IOException
+    {
+        String base_path = extractDir.getCanonicalPath();
+        if (! base_path.endsWith(File.separator)) {
+            base_path += File.separator;
+        }
+        return base_path;
+    }
+
+    /**
+     * Returns the target file of the given entry. Throws an exception if 
+     * the entry would be extracted to a location outside of extractDir, 
+     * e.g. if the entry name contains "../". The returned file is 
+     * canonical, i.e. entry names that denote the same file, like "a/b" 
+     * and "a/./b", return equal files.
+     */
+    private static File getEntryFile(File extractDir, String base_path, String entry_name) 
+    throws IOException
+    {
+        File out_file = new File(extractDir, entry_name);
+        String out_path = out_file.getCanonicalPath();
+        if (! (out_path + File.separator).startsWith(base_path)) {
+            throw new IOException("Invalid ZIP entry path: " + entry_name);
+        }
+        return new File(out_path);
+    }
+
+    private static void extractEntry(ZipFile zip, ZipEntry entry, File out_file) throws IOException
+    {
+        InputStream in = zip.getInputStream(entry);
+        try {
+            FileOutputStream out = new FileOutputStream(out_file);
+            try {
+                DocmaUtil.copyChannel(Channels.newChannel(in), out.getChannel());
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (entry.getTime() > 0) {
+            out_file.setLastModified(entry.getTime());
+        }
+    }
+
+    private static void getResult(Future<File> future) throws IOException, InterruptedException
+    {
+        try {
+            future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Returns the CRC-32 checksum of the given file.
+     */
+    static long computeCrc(File f) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buf = new byte[64*1024];
+            int cnt;
+            while ((cnt = in.read(buf)) >= 0) {
+                crc.update(buf, 0, cnt);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
     private static void addDirectoryEntry(ZipOutputStream zipout, String path)
     throws IOException
     {
@@ -86,18 +86,24 @@ public class SimpleXMLProcessor implements XMLProcessor
         if (! elements.isEmpty()) {
             elements.clear();
         }
+        if (output instanceof StringBuilder) {
+            StringBuilder sb = (StringBuilder) output;
+            sb.ensureCapacity(sb.length() + input.length());
+        }
         int currentIdx = 0;
         
         try {
             parseInput();
             
+            // Unchanged ranges of the input are appended without creating
+            // substrings.
             int copyPos = 0;
             while (currentIdx < elements.size()) {
                 XMLElementContextImpl ctx = elements.get(currentIdx++);
                 // Copy input up to the start of the element
                 if (output != null) {
                     int elemStart = ctx.getOpenTagStart();
-                    output.append(input.substring(copyPos, elemStart));
+                    output.append(input, copyPos, elemStart);
                     copyPos = elemStart;
                 }
                 String key = elementKey(ctx.getElementName());
@@ -129,11 +135,11 @@ public class SimpleXMLProcessor implements XMLProcessor
                                 if (isEmpty) {
                                     int idx = input.lastIndexOf("/>", ctx.getOpenTagEnd() - 1);
                                     if (idx > ctx.getOpenTagStart()) { // should always be true
-                                        output.append(input.substring(copyPos, idx));
+                                        output.append(input, copyPos, idx);
                                         output.append(">");
                                     }
                                 } else {
-                                    output.append(input.substring(copyPos, ctx.getOpenTagEnd()));
+                                    output.append(input, copyPos, ctx.getOpenTagEnd());
                                 }
                                 // copyPos = ctx.getOpenTagEnd();
                             }
@@ -160,12 +166,17 @@ public class SimpleXMLProcessor implements XMLProcessor
             }
             // Copy remaining characters to output
             if ((output != null) && (copyPos < input.length())) {
-                output.append(input.substring(copyPos));
+                output.append(input, copyPos, input.length());
             }
         } catch (XMLParseException xmlex) {
             throw xmlex;
         } catch (Exception ex) {
             throw new XMLParseException(ex);
+        } finally {
+            // Release references to the input
+            elements.clear();
+            this.input = null;
+            this.xmlParser = null;
         }
     }
 
@@ -182,20 +193,30 @@ public class SimpleXMLProcessor implements XMLProcessor
     private void parseInput() throws Exception
     {
         Deque<XMLElementContextImpl> openElements = new ArrayDeque<XMLElementContextImpl>();
+        boolean anyHandler = (default_handler != null) || !handlers.isEmpty();
         boolean finished = false;
         while (! finished) {
             int nextType = xmlParser.next();
             if (nextType == XMLParser.START_ELEMENT) {
+                if (! (anyHandler || checkWellformed)) {
+                    continue;  // no need to track elements
+                }
                 String tagName = xmlParser.getElementName();
-                String key = elementKey(tagName);
                 boolean isEmpty = xmlParser.isEmptyElement();
-                boolean hasHandler = (default_handler != null) || handlers.containsKey(key);
+                boolean hasHandler = anyHandler && 
+                    ((default_handler != null) || handlers.containsKey(elementKey(tagName)));
                 if (hasHandler || (! isEmpty)) {
                     int tagStart = xmlParser.getStartOffset();
                     int tagEnd = xmlParser.getEndOffset();
-                    List<String> attNames = new ArrayList<String>();
-                    List<String> attValues = new ArrayList<String>();
-                    xmlParser.getAttributes(attNames, attValues);
+                    List<String> attNames = null;
+                    List<String> attValues = null;
+                    if (hasHandler) {
+                        // Attributes are only needed for elements that are
+                        // passed to a handler.
+                        attNames = new ArrayList<String>();
+                        attValues = new ArrayList<String>();
+                        xmlParser.getAttributes(attNames, attValues);
+                    }
                     XMLElementContextImpl ctx = 
                       new XMLElementContextImpl(input, tagStart, tagEnd, isEmpty, tagName, attNames, attValues);
                     ctx.setIgnoreAttributeCase(ignoreAttributeCase);
@@ -207,6 +228,9 @@ public class SimpleXMLProcessor implements XMLProcessor
                     }
                 }
             } else if (nextType == XMLParser.END_ELEMENT) {
+                if (! (anyHandler || checkWellformed)) {
+                    continue;
+                }
                 String tagName = xmlParser.getElementName();
                 XMLElementContextImpl ctx;
                 if (checkWellformed) {
@@ -0,0 +1,123 @@
+/*
+ * ListenerRegistryBenchmark.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.coreapi.implementation;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.docma.coreapi.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the dispatch throughput of a listener list, while other threads
+ * concurrently register and unregister listeners. The
+ * <code>ListenerRegistry</code> is compared with a synchronized
+ * <code>ArrayList</code>, which is copied on each dispatch (the way the
+ * listener lists were used before the registry was introduced).
+ * <p>
+ * Requires the JMH library (<code>libs.jmh.classpath</code>), including the
+ * annotation processor. Run with <code>main()</code> or with the JMH
+ * command line runner.
+ * </p>
+ *
+ * @author MP
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerRegistryBenchmark
+{
+    @Param({"registry", "copyList"})
+    public String impl;
+
+    @Param({"8"})
+    public int listenerCount;
+
+    private List<DocListener> listeners;
+
+
+    @Setup
+    public void setUp()
+    {
+        if (impl.equals("registry")) {
+            listeners = new ListenerRegistry<DocListener>();
+        } else {
+            listeners = Collections.synchronizedList(new ArrayList<DocListener>());
+        }
+        for (int i = 0; i < listenerCount; i++) {
+            listeners.add(new CountingListener());
+        }
+    }
+
+    /* --------------  Benchmarks  ---------------------- */
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public int dispatch()
+    {
+        int cnt = 0;
+        for (DocListener listener : ListenerRegistry.snapshotOf(listeners)) {
+            listener.event(null);
+            cnt++;
+        }
+        return cnt;
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public void registerUnregister(Blackhole bh)
+    {
+        DocListener listener = new CountingListener();
+        listeners.add(listener);
+        bh.consume(listeners.remove(listener));
+    }
+
+    @Benchmark
+    @Group("idle")
+    @GroupThreads(4)
+    public int dispatchOnly()
+    {
+        return dispatch();
+    }
+
+    /* --------------  Main  ---------------------- */
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                   .include(ListenerRegistryBenchmark.class.getSimpleName())
+                   .build()).run();
+    }
+
+    /* --------------  Inner classes  ---------------------- */
+
+    private static class CountingListener implements DocListener
+    {
+        private int count = 0;
+
+        public void event(DocEvent evt)
+        {
+            count++;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * CopyStreamBenchmark.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.util;
+
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares <code>DocmaUtil.copyStream()</code>, which copies file streams 
+ * with <code>FileChannel.transferTo()</code>, with a plain buffer copy
+ * (the implementation before the channel transfer was introduced).
+ * <p>
+ * Requires the JMH library (<code>libs.jmh.classpath</code>), including the
+ * annotation processor. Run with <code>main()</code> or with the JMH
+ * command line runner.
+ * </p>
+ *
+ * @author MP
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopyStreamBenchmark
+{
+    @Param({"65536", "16777216"})
+    public int fileSize;
+
+    private File source;
+    private File target;
+
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        source = File.createTempFile("copybench", ".src");
+        target = File.createTempFile("copybench", ".dst");
+        OutputStream out = new FileOutputStream(source);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        source.delete();
+        target.delete();
+    }
+
+    /* --------------  Benchmarks  ---------------------- */
+
+    @Benchmark
+    public long copyFileStreams() throws IOException
+    {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                DocmaUtil.copyStream(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return target.length();
+    }
+
+    @Benchmark
+    public long copyBuffered() throws IOException
+    {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                byte[] buf = new byte[64*1024];
+                int cnt;
+                while ((cnt = in.read(buf)) >= 0) {
+                    if (cnt > 0) out.write(buf, 0, cnt);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return target.length();
+    }
+
+    /* --------------  Main  ---------------------- */
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                   .include(CopyStreamBenchmark.class.getSimpleName())
+                   .build()).run();
+    }
+}
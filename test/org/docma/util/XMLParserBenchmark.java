@@ -0,0 +1,115 @@
+/*
+ * XMLParserBenchmark.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.util;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the string-based attribute access of <code>XMLParser</code>
+ * (<code>getElementName()</code> and <code>getAttributes()</code>) with the
+ * offset-based access (<code>elementNameEquals()</code>, 
+ * <code>getAttributeIndex()</code> and 
+ * <code>attributeValueContainsToken()</code>). Both benchmarks count the 
+ * paragraphs with a given CSS class. To compare the allocation rates, 
+ * run with the GC profiler (JMH option <code>-prof gc</code>).
+ * <p>
+ * Requires the JMH library (<code>libs.jmh.classpath</code>), including the
+ * annotation processor. Run with <code>main()</code> or with the JMH
+ * command line runner.
+ * </p>
+ *
+ * @author MP
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMLParserBenchmark
+{
+    @Param({"10000"})
+    public int paragraphCount;
+
+    private String xml;
+
+
+    @Setup
+    public void setUp()
+    {
+        StringBuilder buf = new StringBuilder(paragraphCount * 160);
+        buf.append("<div class=\"doc\">");
+        for (int i = 0; i < paragraphCount; i++) {
+            String cls = (i % 3 == 0) ? "note draft" : "note";
+            buf.append("<p id=\"p").append(i).append("\" class=\"").append(cls)
+               .append("\" style=\"margin:0\">Paragraph <span lang=\"en\" title=\"t")
+               .append(i).append("\">text</span> and <b>bold</b> content.</p>");
+        }
+        buf.append("</div>");
+        xml = buf.toString();
+    }
+
+    /* --------------  Benchmarks  ---------------------- */
+
+    @Benchmark
+    public int stringAttributes() throws XMLParseException
+    {
+        int cnt = 0;
+        Map<String, String> atts = new HashMap<String, String>();
+        XMLParser parser = new XMLParser(xml);
+        int type;
+        while ((type = parser.next()) != XMLParser.FINISHED) {
+            if ((type == XMLParser.START_ELEMENT) && parser.getElementName().equals("p")) {
+                parser.getAttributes(atts);
+                String cls = atts.get("class");
+                if ((cls != null) && Arrays.asList(cls.split(" ")).contains("draft")) {
+                    cnt++;
+                }
+            }
+        }
+        return cnt;
+    }
+
+    @Benchmark
+    public int offsetAttributes() throws XMLParseException
+    {
+        int cnt = 0;
+        XMLParser parser = new XMLParser(xml);
+        int type;
+        while ((type = parser.next()) != XMLParser.FINISHED) {
+            if ((type == XMLParser.START_ELEMENT) && parser.elementNameEquals("p", false)) {
+                int idx = parser.getAttributeIndex("class", false);
+                if ((idx >= 0) && parser.attributeValueContainsToken(idx, "draft")) {
+                    cnt++;
+                }
+            }
+        }
+        return cnt;
+    }
+
+    /* --------------  Main  ---------------------- */
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                   .include(XMLParserBenchmark.class.getSimpleName())
+                   .build()).run();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * XMLProcessorBenchmark.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.util;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures <code>XMLProcessor.process()</code> on a DocBook-style document 
+ * of approximately 5 MB, where only a few element types are changed.
+ * The benchmarks process the document with two element handlers, and 
+ * without any handler (with and without well-formedness check).
+ * To compare the allocation rates, run with the GC profiler 
+ * (JMH option <code>-prof gc</code>).
+ * <p>
+ * Requires the JMH library (<code>libs.jmh.classpath</code>), including the
+ * annotation processor. Run with <code>main()</code> or with the JMH
+ * command line runner.
+ * </p>
+ *
+ * @author MP
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XMLProcessorBenchmark
+{
+    private static final int DOC_SIZE = 5 * 1024 * 1024;
+
+    private String xml;
+
+
+    @Setup
+    public void setUp()
+    {
+        StringBuilder buf = new StringBuilder(DOC_SIZE + 4096);
+        buf.append("<book xmlns=\"http://docbook.org/ns/docbook\" version=\"5.0\">");
+        int chap = 0;
+        while (buf.length() < DOC_SIZE) {
+            chap++;
+            buf.append("<chapter id=\"ch").append(chap).append("\"><title>Chapter ")
+               .append(chap).append("</title>");
+            for (int sect = 1; sect <= 10; sect++) {
+                buf.append("<section id=\"ch").append(chap).append("_s").append(sect)
+                   .append("\"><title>Section ").append(sect).append("</title>");
+                for (int para = 1; para <= 8; para++) {
+                    buf.append("<para>This is paragraph ").append(para)
+                       .append(" with <emphasis role=\"bold\">emphasized</emphasis> text, ")
+                       .append("a <link linkend=\"ch").append(chap).append("\">cross reference</link> ")
+                       .append("and some <literal>code</literal> in it.</para>");
+                }
+                buf.append("<figure><title>Figure</title><mediaobject><imageobject>")
+                   .append("<imagedata fileref=\"img/ch").append(chap).append("_").append(sect)
+                   .append(".png\" width=\"80%\"/></imageobject></mediaobject></figure>");
+                buf.append("</section>");
+            }
+            buf.append("</chapter>");
+        }
+        buf.append("</book>");
+        xml = buf.toString();
+    }
+
+    /* --------------  Benchmarks  ---------------------- */
+
+    @Benchmark
+    public int twoHandlers() throws Exception
+    {
+        XMLProcessor proc = XMLProcessorFactory.newInstance();
+        proc.setElementHandler("imagedata", new XMLElementHandler() {
+            public void processElement(XMLElementContext ctx) {
+                ctx.setAttribute("width", null);
+            }
+        });
+        proc.setElementHandler("emphasis", new XMLElementHandler() {
+            public void processElement(XMLElementContext ctx) {
+                if ("bold".equals(ctx.getAttributeValue("role"))) {
+                    ctx.setAttribute("role", "strong");
+                }
+            }
+        });
+        StringBuilder out = new StringBuilder();
+        proc.process(xml, out);
+        return out.length();
+    }
+
+    @Benchmark
+    public int noHandlerWellformed() throws Exception
+    {
+        XMLProcessor proc = XMLProcessorFactory.newInstance();
+        proc.setCheckWellformed(true);
+        StringBuilder out = new StringBuilder();
+        proc.process(xml, out);
+        return out.length();
+    }
+
+    @Benchmark
+    public int noHandlerUnchecked() throws Exception
+    {
+        XMLProcessor proc = XMLProcessorFactory.newInstance();
+        proc.setCheckWellformed(false);
+        StringBuilder out = new StringBuilder();
+        proc.process(xml, out);
+        return out.length();
+    }
+
+    /* --------------  Main  ---------------------- */
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                   .include(XMLProcessorBenchmark.class.getSimpleName())
+                   .build()).run();
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * ZipUtilTest.java
+ *
+ *  Copyright (C) 2016  Manfred Paula, http://www.docmenta.org
+ *
+ *  This file is part of Docmenta. Docmenta is free software: you can
+ *  redistribute it and/or modify it under the terms of the GNU Lesser
+ *  General Public License as published by the Free Software Foundation,
+ *  either version 3 of the License, or (at your option) any later version.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with Docmenta.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.docma.util;
+
+import java.io.*;
+import java.util.zip.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the validation of entry paths by <code>ZipUtil.extractZipStream()</code>
+ * and <code>ZipUtil.extractZipFile()</code>. Entries must never be written
+ * outside of the extraction directory.
+ *
+ * @author MP
+ */
+public class ZipUtilTest
+{
+    private File tempDir;
+    private File extractDir;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        tempDir = File.createTempFile("ziputil", "").getCanonicalFile();
+        if (! (tempDir.delete() && tempDir.mkdir())) {
+            throw new IOException("Could not create directory: " + tempDir);
+        }
+        extractDir = new File(tempDir, "extract");
+        extractDir.mkdir();
+    }
+
+    @After
+    public void tearDown()
+    {
+        DocmaUtil.recursiveFileDelete(tempDir);
+    }
+
+    /* --------------  extractZipStream  ---------------------- */
+
+    @Test
+    public void streamExtractsNestedEntries() throws Exception
+    {
+        File zip = createZip("a.txt", "dir/b.txt", "dir/sub/c.txt");
+        extractStream(zip);
+        assertContent("a.txt", new File(extractDir, "a.txt"));
+        assertContent("dir/b.txt", new File(extractDir, "dir/b.txt"));
+        assertContent("dir/sub/c.txt", new File(extractDir, "dir/sub/c.txt"));
+    }
+
+    @Test
+    public void streamRejectsParentPath() throws Exception
+    {
+        File zip = createZip("../evil.txt");
+        try {
+            extractStream(zip);
+            fail("Entry outside of extraction directory has been accepted.");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertFalse(new File(tempDir, "evil.txt").exists());
+    }
+
+    @Test
+    public void streamRejectsNestedParentPath() throws Exception
+    {
+        File zip = createZip("dir/../../evil.txt");
+        try {
+            extractStream(zip);
+            fail("Entry outside of extraction directory has been accepted.");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertFalse(new File(tempDir, "evil.txt").exists());
+    }
+
+    @Test
+    public void streamKeepsAbsolutePathInside() throws Exception
+    {
+        File outside = new File(tempDir, "abs.txt");
+        File zip = createZip(outside.getPath().replace(File.separatorChar, '/'));
+        try {
+            extractStream(zip);
+        } catch (IOException ex) {
+            // rejecting the entry is okay as well
+        }
+        assertFalse(outside.exists());
+    }
+
+    /* --------------  extractZipFile  ---------------------- */
+
+    @Test
+    public void fileExtractsNestedEntries() throws Exception
+    {
+        File zip = createZip("a.txt", "dir/b.txt", "dir/sub/c.txt");
+        ZipUtil.extractZipFile(zip, extractDir, 2, null);
+        assertContent("a.txt", new File(extractDir, "a.txt"));
+        assertContent("dir/b.txt", new File(extractDir, "dir/b.txt"));
+        assertContent("dir/sub/c.txt", new File(extractDir, "dir/sub/c.txt"));
+    }
+
+    @Test
+    public void fileRejectsParentPathBeforeWriting() throws Exception
+    {
+        File zip = createZip("a.txt", "../evil.txt");
+        try {
+            ZipUtil.extractZipFile(zip, extractDir, 2, null);
+            fail("Entry outside of extraction directory has been accepted.");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertFalse(new File(tempDir, "evil.txt").exists());
+        assertFalse(new File(extractDir, "a.txt").exists());
+    }
+
+    @Test
+    public void fileRejectsNestedParentPath() throws Exception
+    {
+        File zip = createZip("dir/../../evil.txt");
+        try {
+            ZipUtil.extractZipFile(zip, extractDir, 2, null);
+            fail("Entry outside of extraction directory has been accepted.");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertFalse(new File(tempDir, "evil.txt").exists());
+    }
+
+    @Test
+    public void fileKeepsAbsolutePathInside() throws Exception
+    {
+        File outside = new File(tempDir, "abs.txt");
+        File zip = createZip(outside.getPath().replace(File.separatorChar, '/'));
+        try {
+            ZipUtil.extractZipFile(zip, extractDir, 2, null);
+        } catch (IOException ex) {
+            // rejecting the entry is okay as well
+        }
+        assertFalse(outside.exists());
+    }
+
+    @Test
+    public void fileExtractsSameTargetOnce() throws Exception
+    {
+        // Both entries denote the same file; the last entry wins.
+        File zip = createZip("dir/b.txt", "dir/./b.txt");
+        ZipUtil.extractZipFile(zip, extractDir, 4, null);
+        assertContent("dir/./b.txt", new File(extractDir, "dir/b.txt"));
+    }
+
+    /* --------------  Private methods  ---------------------- */
+
+    /**
+     * Creates a ZIP file with the given entries. The content of each entry
+     * is the entry name.
+     */
+    private File createZip(String... entryNames) throws IOException
+    {
+        File zip = new File(tempDir, "test.zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            for (String name : entryNames) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(name.getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return zip;
+    }
+
+    private void extractStream(File zip) throws Exception
+    {
+        InputStream in = new FileInputStream(zip);
+        try {
+            ZipUtil.extractZipStream(in, extractDir);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void assertContent(String expected, File f) throws IOException
+    {
+        assertTrue("File does not exist: " + f, f.isFile());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(f);
+        try {
+            DocmaUtil.copyStream(in, out);
+        } finally {
+            in.close();
+        }
+        assertEquals(expected, out.toString("UTF-8"));
+    }
+}